@@ -0,0 +1,78 @@
+package net.electroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of diffing two snapshots of the local files, as push does after the
+ * watcher lost events or when resuming from a checkpoint.
+ *
+ * Of the entries, 1% are modified, 0.5% are deleted, 0.5% are created and 0.5% are renamed.
+ * Run with -prof gc to also measure the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DiffBenchmark {
+
+    @Param({"100000", "1000000"})
+    private int entries;
+
+    private Map<Location, Stat> before;
+    private Map<Location, Stat> after;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path local = Files.createTempDirectory("dropbox-local");
+        Root root = new Root(local, Paths.get("/dropbox"));
+        Random random = new Random(entries);
+        before = new ConcurrentHashMap<>(entries);
+        after = new ConcurrentHashMap<>(entries);
+        for(int i = 0; i < entries; i++) {
+            Location location = root.fromLocal(local.resolve("folder-" + (i % 1000) + "/file-" + i));
+            long modified = 1500000000000L + random.nextInt(1000000000);
+            long size = random.nextInt(1 << 20);
+            Stat stat = new Stat(modified, size, "inode-" + i, false);
+            int roll = random.nextInt(200);
+            if(roll == 0) {
+                before.put(location, stat);
+            } else if(roll == 1) {
+                after.put(location, stat);
+            } else if(roll == 2) {
+                before.put(location, stat);
+                after.put(root.fromLocal(local.resolve("folder-" + (i % 1000) + "/renamed-" + i)), stat);
+            } else {
+                before.put(location, stat);
+                after.put(location, roll < 5 ? new Stat(modified + 1000, size, stat.fileKey(), false) : stat);
+            }
+        }
+    }
+
+    @Benchmark
+    public Diff diff() {
+        return Diff.of(before, after);
+    }
+
+}
@@ -0,0 +1,92 @@
+package net.electroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of hashing a file through each of the I/O paths of {@link Hash}.
+ *
+ * The "stream" benchmark is the original loop of 1 KB {@link FileInputStream} reads,
+ * which the others are compared against. Files larger than the defaults, up to 10 GB,
+ * can be benchmarked with: java -jar target/benchmarks.jar Hash -p size=10737418240
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"1024", "1048576", "104857600", "1073741824"})
+    private long size;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("dropbox-hash", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(size).nextBytes(chunk);
+        try(OutputStream output = Files.newOutputStream(file)) {
+            for(long written = 0; written < size; written += chunk.length) {
+                output.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] stream() throws IOException {
+        Hash hash = new Hash();
+        byte[] buf = new byte[1024];
+        try(InputStream input = new FileInputStream(file.toFile())) {
+            while(true) {
+                int n = input.read(buf);
+                if(n < 0) break;
+                hash.update(buf, 0, n);
+            }
+        }
+        return hash.digest();
+    }
+
+    @Benchmark
+    public String channel() {
+        return new Hash().mapped(false).hash(file);
+    }
+
+    @Benchmark
+    public String mapped() {
+        return new Hash().mapped(true).hash(file);
+    }
+
+    @Benchmark
+    public String parallel() {
+        return new Hash().mapped(false).hash(file, Hash.pool());
+    }
+
+}
@@ -0,0 +1,83 @@
+package net.electroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of hashing a file through a {@link FileChannel} with read buffers of different sizes,
+ * to choose the size of the buffer that {@link Hash#hash(Path)} reads with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBufferBenchmark {
+
+    @Param({"1048576", "104857600"})
+    private long size;
+
+    @Param({"4096", "65536", "262144", "1048576", "4194304"})
+    private int buffer;
+
+    @Param({"true", "false"})
+    private boolean direct;
+
+    private Path file;
+    private ByteBuffer buf;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("dropbox-hash", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(size).nextBytes(chunk);
+        try(OutputStream output = Files.newOutputStream(file)) {
+            for(long written = 0; written < size; written += chunk.length) {
+                output.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        buf = direct ? ByteBuffer.allocateDirect(buffer) : ByteBuffer.allocate(buffer);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] read() throws IOException {
+        Hash hash = new Hash();
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf.clear();
+            while(channel.read(buf) >= 0) {
+                buf.flip();
+                hash.update(buf);
+                buf.clear();
+            }
+        }
+        return hash.digest();
+    }
+
+}
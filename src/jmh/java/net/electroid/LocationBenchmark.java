@@ -0,0 +1,81 @@
+package net.electroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping the paths of a tree between the local and remote roots
+ * with {@link Root#fromLocal(Path)} and {@link Root#fromRemote(Path)},
+ * as done for every file on every scan.
+ *
+ * The paths are generated, and nothing is read from the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LocationBenchmark {
+
+    private static final int PATHS = 10000;
+
+    @Param({"2", "8", "32"})
+    private int depth;
+
+    private Root root;
+    private List<Path> locals;
+    private List<Path> remotes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path local = Files.createTempDirectory("dropbox-local");
+        Path remote = Paths.get("/dropbox/remote");
+        root = new Root(local, remote);
+        locals = new ArrayList<>(PATHS);
+        remotes = new ArrayList<>(PATHS);
+        for(int i = 0; i < PATHS; i++) {
+            StringBuilder relative = new StringBuilder();
+            for(int j = 1; j < depth; j++) {
+                relative.append("folder-").append(j).append('-').append(i % (j + 3)).append('/');
+            }
+            relative.append("file-").append(i).append(".txt");
+            locals.add(local.resolve(relative.toString()));
+            remotes.add(remote.resolve(relative.toString()));
+        }
+    }
+
+    @Benchmark
+    public void fromLocal(Blackhole blackhole) {
+        for(Path path : locals) {
+            blackhole.consume(root.fromLocal(path));
+        }
+    }
+
+    @Benchmark
+    public void fromRemote(Blackhole blackhole) {
+        for(Path path : remotes) {
+            blackhole.consume(root.fromRemote(path));
+        }
+    }
+
+}
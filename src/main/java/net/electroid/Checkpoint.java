@@ -0,0 +1,223 @@
+package net.electroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The state of a sync that is periodically saved to disk, so that
+ * a restart can continue where the previous run left off.
+ *
+ * Contains...
+ * a) the cursor of the last page of remote changes that was applied
+ * b) the mirror of remote metadata as of that cursor
+ * c) the snapshot of local files and their attributes that push last saw
+ *
+ * The checkpoint is stored in a compact binary file under the local sync root.
+ */
+public class Checkpoint {
+
+    public static final String FILE_NAME = ".dropbox-checkpoint";
+    private static final int MAGIC = 0x44424332; // "DBC2"
+
+    private final Path root;
+    private final Path file;
+    private volatile String cursor;
+    private volatile RemoteIndex remote;
+    private volatile Map<Location, Stat> snapshot;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private long saved = -1;
+    private ScheduledExecutorService scheduler;
+
+    private Checkpoint(Path root) {
+        this.root = root;
+        this.file = root.resolve(FILE_NAME);
+        this.remote = new RemoteIndex();
+    }
+
+    /**
+     * Get the cursor of the last page of remote changes that was applied.
+     * @return the cursor, or null if there is none.
+     */
+    public String cursor() {
+        return cursor;
+    }
+
+    /**
+     * Set the cursor of the last page of remote changes that was applied.
+     * Every change up to the cursor must already be applied to the remote index.
+     * @param cursor the cursor.
+     */
+    public void cursor(String cursor) {
+        this.cursor = cursor;
+        dirty.set(true);
+    }
+
+    /**
+     * Get the mirror of remote metadata, which is seeded if it was restored.
+     * @return the remote index.
+     */
+    public RemoteIndex remote() {
+        return remote;
+    }
+
+    /**
+     * Get the snapshot of local files and their attributes that push last saw.
+     * @return the snapshot, or null if there is none.
+     */
+    public Map<Location, Stat> snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Set the snapshot of local files that push keeps up to date.
+     * The map is read while it is being written to, so it must be safe for concurrent use.
+     * @param snapshot the snapshot.
+     */
+    public void snapshot(Map<Location, Stat> snapshot) {
+        this.snapshot = snapshot;
+        dirty.set(true);
+    }
+
+    /**
+     * Mark the snapshot as changed, after push updated it in place.
+     */
+    public void changed() {
+        dirty.set(true);
+    }
+
+    /**
+     * Whether the checkpoint holds enough state to skip downloading everything.
+     * @return whether there is a cursor to continue from.
+     */
+    public boolean resumable() {
+        return cursor != null;
+    }
+
+    /**
+     * Forget all state, such as when the cursor was reset by Dropbox.
+     */
+    public void reset() {
+        this.cursor = null;
+        this.remote = new RemoteIndex();
+        this.snapshot = null;
+        dirty.set(true);
+    }
+
+    /**
+     * Save the checkpoint in the background every DROPBOX_CHECKPOINT_SECONDS (default 30).
+     */
+    public synchronized void start() {
+        if(scheduler != null) return;
+        long interval = Math.max(1, Config.integer("DROPBOX_CHECKPOINT_SECONDS", 30));
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::save, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop saving the checkpoint in the background and save it one last time.
+     */
+    public synchronized void stop() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        save();
+    }
+
+    /**
+     * Write the checkpoint to disk, next to the old one, and atomically move it into place.
+     * The cursor is read before the remote index, so the saved index is never behind the cursor.
+     * Nothing is written when neither the cursor, the snapshot nor the remote index changed since the last save.
+     */
+    public synchronized void save() {
+        String cursor = this.cursor;
+        if(cursor == null) return;
+        RemoteIndex remote = this.remote;
+        long version = remote.version();
+        if(!dirty.getAndSet(false) && version == saved) return;
+        Map<Location, Stat> snapshot = this.snapshot;
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeUTF(cursor);
+                remote.write(output);
+                output.writeBoolean(snapshot != null);
+                if(snapshot != null) {
+                    Map<Location, Stat> copy = new HashMap<>(snapshot);
+                    output.writeInt(copy.size());
+                    for(Map.Entry<Location, Stat> entry : copy.entrySet()) {
+                        Stat stat = entry.getValue();
+                        output.writeUTF(root.relativize(entry.getKey().local()).toString());
+                        output.writeLong(stat.modified());
+                        output.writeLong(stat.size());
+                        output.writeBoolean(stat.directory());
+                        output.writeUTF(stat.fileKey() == null ? "" : stat.fileKey());
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            saved = version;
+        } catch(IOException | RuntimeException e) {
+            // Also catch runtime errors, which would cancel every later save in the background
+            dirty.set(true);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Load the checkpoint stored under a local sync root.
+     * A missing or unreadable checkpoint results in an empty checkpoint.
+     * @param root the sync root.
+     * @return the loaded checkpoint.
+     */
+    public static Checkpoint load(Root root) {
+        Path local = root.location().local();
+        Checkpoint checkpoint = new Checkpoint(local);
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint.file)))) {
+            if(input.readInt() != MAGIC) return checkpoint;
+            String cursor = input.readUTF();
+            RemoteIndex remote = RemoteIndex.read(input);
+            Map<Location, Stat> snapshot = null;
+            if(input.readBoolean()) {
+                int size = input.readInt();
+                snapshot = new ConcurrentHashMap<>(size);
+                for(int i = 0; i < size; i++) {
+                    Location location = root.fromLocal(local.resolve(input.readUTF()));
+                    long modified = input.readLong(), length = input.readLong();
+                    boolean directory = input.readBoolean();
+                    String fileKey = input.readUTF();
+                    snapshot.put(location, new Stat(modified, length, fileKey.isEmpty() ? null : fileKey, directory));
+                }
+            }
+            checkpoint.cursor = cursor;
+            checkpoint.remote = remote;
+            checkpoint.snapshot = snapshot;
+        } catch(NoSuchFileException e) {
+            // First start, nothing has been synced yet
+        } catch(IOException ioe) {
+            checkpoint.reset();
+            ioe.printStackTrace();
+        }
+        return checkpoint;
+    }
+
+}
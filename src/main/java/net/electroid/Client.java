@@ -2,76 +2,128 @@ package net.electroid;
 
 import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxRequestConfig;
-import com.dropbox.core.http.StandardHttpRequestor;
 import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
 import com.dropbox.core.v2.files.DeleteErrorException;
 import com.dropbox.core.v2.files.DeletedMetadata;
 import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.ListFolderContinueErrorException;
 import com.dropbox.core.v2.files.ListFolderGetLatestCursorResult;
 import com.dropbox.core.v2.files.ListFolderLongpollResult;
 import com.dropbox.core.v2.files.ListFolderResult;
 import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.RelocationErrorException;
 import com.dropbox.core.v2.files.SearchMatch;
 import com.dropbox.core.v2.files.SearchMode;
 import com.dropbox.core.v2.files.SearchResult;
 import com.dropbox.core.v2.files.WriteMode;
 
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Wrapper for the Dropbox client to fetch file metadata,
  * download files, upload files, and listen to file changes.
+ *
+ * Clients that sync the same root should share a {@link RemoteIndex},
+ * so that metadata seen by one of them is known to all of them.
+ * Every request to Dropbox goes through the shared {@link Scheduler} and {@link Transport}, and files
+ * written by pull are recorded in the shared {@link Echoes} so that push skips them.
  */
 public class Client {
 
+    private static final Duration PUSH_SETTLE = Duration.ofMillis(100);
+    private static final Duration PUSH_IDLE = Duration.ofSeconds(1);
+    private static final long DOWNLOAD_RESUME = Config.integer("DROPBOX_DOWNLOAD_RESUME_MB", 64) * 1024L * 1024L;
+    private static final int PULL_QUEUE = Config.integer("DROPBOX_PULL_QUEUE", 10000);
+    static final Metrics.Family<LongAdder> BYTES = Metrics.counter("dropbox_sync_transferred_bytes_total", "Bytes of files transferred.", "direction");
+    static final Metrics.Family<LongAdder> FILES = Metrics.counter("dropbox_sync_transferred_files_total", "Files transferred.", "direction");
+    private static final Histogram PULL_LAG = Metrics.histogram("dropbox_sync_pull_lag_seconds", "Time from a remote change to the local write.").get();
+    private static final Metrics.Family<Supplier<? extends Number>> PULL_QUEUED = Metrics.gauge("dropbox_sync_pull_queued", "Remote changes waiting to be applied.", "root");
+    private static final Metrics.Family<Supplier<? extends Number>> PUSH_UNSETTLED = Metrics.gauge("dropbox_sync_push_unsettled", "Changed local paths that are held back until they stop changing.", "root");
+    private static final Histogram PUSH_SCAN = Metrics.histogram("dropbox_sync_push_scan_seconds", "Duration of walking the whole local tree.").get();
+
     private final DbxClientV2 client;
     private final DbxClientV2 clientLongpoll;
+    private final RemoteIndex remote;
+    private final Transfers transfers;
+    private final Scheduler scheduler;
+    private final Echoes echoes;
 
-    public Client(String accessToken) {
-        this.client = client(accessToken);
-        this.clientLongpoll = client(accessToken, Duration.ofMinutes(5));
+    public Client(String accessToken, RemoteIndex remote, Transfers transfers, Scheduler scheduler, Echoes echoes) {
+        this.client = client(accessToken, Transport.DEFAULT);
+        this.clientLongpoll = client(accessToken, Transport.LONGPOLL);
+        this.remote = remote;
+        this.transfers = transfers;
+        this.scheduler = scheduler;
+        this.echoes = echoes;
     }
 
     /**
      * Fetch the metadata of a locally or remotely defined file or directory.
+     *
+     * Metadata is read from the {@link RemoteIndex}. Only when the index has not
+     * been seeded yet and knows nothing about the location is Dropbox searched.
      * @param location the location of the file or directory.
-     * @return the Dropbox metadata object.
+     * @return the mirrored Dropbox metadata.
      */
-    public Optional<Metadata> metadata(Location location) {
+    public Optional<RemoteIndex.Entry> metadata(Location location) {
+        Optional<RemoteIndex.Entry> entry = remote.get(location);
+        if(entry.isPresent() || remote.seeded()) {
+            return entry;
+        }
         try {
-            SearchResult search = client.files()
+            String key = RemoteIndex.key(location);
+            SearchResult search = scheduler.read("files/search", () -> client.files()
                 .searchBuilder(location.remoteParent().toString(), location.remote().getFileName().toString())
                 .withMode(SearchMode.FILENAME)
-                .withMaxResults(1L)
-                .start();
+                .start());
             return search.getMatches().stream()
                 .map(SearchMatch::getMetadata)
-                .findFirst();
-        } catch(DbxException e) {
+                .filter(metadata -> metadata.getPathLower().equals(key))
+                .findFirst()
+                .flatMap(RemoteIndex.Entry::of);
+        } catch(IOException | DbxException e) {
             return Optional.empty();
         }
     }
@@ -80,15 +132,10 @@ public class Client {
      * Fetch the metadata of a locally or remotely defined file.
      * Will return empty if the query returns any other metadata (including directory).
      * @param location the location of the file.
-     * @return the Dropbox strictly-file metadata object.
+     * @return the mirrored strictly-file metadata.
      */
-    public Optional<FileMetadata> metadataFile(Location location) {
-        Optional<Metadata> metadata = metadata(location);
-        if(metadata.isPresent() && metadata.get() instanceof FileMetadata) {
-            return Optional.of((FileMetadata) metadata.get());
-        } else {
-            return Optional.empty();
-        }
+    public Optional<RemoteIndex.Entry> metadataFile(Location location) {
+        return metadata(location).filter(entry -> !entry.folder());
     }
 
     /**
@@ -99,29 +146,18 @@ public class Client {
      * @throws DbxException when Dropbox is unable to search for related files.
      */
     public boolean uploadable(Location location, AtomicBoolean... isNew) throws DbxException {
-        File file = location.file();
-        if(!file.exists() || file.isHidden()) {
+        if(!location.exists() || location.file().isHidden()) {
             return false;
         } else {
             if(location.directory()) {
-                ListFolderResult list = client.files().listFolder(location.remoteParent().toString());
-                while(!list.getEntries().isEmpty()) {
-                    for(Metadata metadata : list.getEntries()) {
-                        if(metadata instanceof FolderMetadata &&
-                           metadata.getPathLower().equalsIgnoreCase(location.remote().toString())) {
-                            return false;
-                        }
-                    }
-                    list = client.files().listFolderContinue(list.getCursor());
-                }
-                return true;
+                return !metadata(location).filter(RemoteIndex.Entry::folder).isPresent();
             } else {
-                Optional<FileMetadata> metadata = metadataFile(location);
+                Optional<RemoteIndex.Entry> metadata = metadataFile(location);
                 if(metadata.isPresent()) {
-                    if(metadata.get().getContentHash().equalsIgnoreCase(location.hash())) {
+                    if(metadata.get().hash().equalsIgnoreCase(location.hash())) {
                         return false;
                     } else {
-                        Instant remoteModified = metadata.get().getClientModified().toInstant(),
+                        Instant remoteModified = metadata.get().modified(),
                                 localModified = location.modified();
                         return localModified.isAfter(remoteModified);
                     }
@@ -135,30 +171,113 @@ public class Client {
 
     /**
      * Upload a file or directory remotely.
+     * New files larger than {@link UploadBatch#threshold()} whose content already exists remotely
+     * are copied on the server instead of uploaded. Files larger than {@link UploadSession#threshold()}
+     * are uploaded in chunks, and files up to {@link UploadBatch#threshold()} and directories are
+     * added to the batch when one is given. Copies and uploads that are not batched run on the shared
+     * {@link Transfers} in order of their {@link Priority}, blocking until they are done.
      * @param location the location to upload the file or directory.
+     * @param batch the batch to commit small files with, instead of committing them right away.
      * @return whether the upload was allowed @{{@link #uploadable(Location, AtomicBoolean...)}}
-     *         and whether the operation was a success.
+     *         and whether the operation was a success, or was added to the batch.
      * @throws IOException when the local machine is unable to read the file or directory.
      * @throws DbxException when Dropbox was unable to process the uploaded file.
+     * @throws InterruptedException when the batch was full and interrupted while committing.
      */
-    public boolean upload(Location location) throws IOException, DbxException {
+    public boolean upload(Location location, UploadBatch... batch) throws IOException, DbxException, InterruptedException {
         AtomicBoolean isNew = new AtomicBoolean(false);
         if(uploadable(location, isNew)) {
             if(location.directory()) {
-                client.files().createFolderV2(location.remote().toString());
+                if(batch.length > 0) {
+                    batch[0].mkdir(location);
+                } else {
+                    remote.put(scheduler.write("files/create_folder_v2", () -> client.files().createFolderV2(location.remote().toString())).getMetadata());
+                }
+                return true;
+            }
+            long size = location.size();
+            if(isNew.get() && size > UploadBatch.threshold() && copy(location, isNew)) {
+                return true;
+            }
+            CommitInfo commit = CommitInfo.newBuilder(location.remote().toString())
+                .withClientModified(new Date(location.modified().toEpochMilli()))
+                .withAutorename(false)
+                .withMode(isNew.get() ? WriteMode.ADD : WriteMode.OVERWRITE)
+                .build();
+            if(size > UploadSession.threshold()) {
+                remote.put(transfer(location, size, () -> new UploadSession(client, scheduler).upload(location.local(), commit)));
+                uploaded(size);
+            } else if(batch.length > 0 && size <= UploadBatch.threshold()) {
+                batch[0].add(location, commit);
             } else {
-                InputStream input = new FileInputStream(location.file());
-                client.files().uploadBuilder(location.remote().toString())
-                    .withClientModified(new Date(location.modified().toEpochMilli()))
-                    .withAutorename(false)
-                    .withMode(isNew.get() ? WriteMode.ADD : WriteMode.OVERWRITE)
-                    .uploadAndFinish(input);
+                remote.put(transfer(location, size, () -> scheduler.write("files/upload", () -> {
+                    try(InputStream input = new FileInputStream(location.file())) {
+                        return client.files().uploadBuilder(commit.getPath())
+                            .withClientModified(commit.getClientModified())
+                            .withAutorename(commit.getAutorename())
+                            .withMode(commit.getMode())
+                            .uploadAndFinish(input);
+                    }
+                })));
+                uploaded(size);
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * Copy a remote file with the same content as a local file to the location of the local file.
+     * @param location the location of the local file, which does not exist remotely.
+     * @param isNew set to false when the copy was made but its content turned out to be different.
+     * @return whether the copy was made and has the same content.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox is unable to copy the file.
+     * @throws InterruptedException when the thread is interrupted while waiting for the transfers.
+     */
+    private boolean copy(Location location, AtomicBoolean isNew) throws IOException, DbxException, InterruptedException {
+        String hash = location.hash();
+        Optional<String> source = remote.find(hash);
+        if(!source.isPresent()) return false;
+        Metadata metadata;
+        try {
+            metadata = transfer(location, location.size(), () -> scheduler.write("files/copy_v2", () -> client.files()
+                .copyV2(source.get(), location.remote().toString())
+                .getMetadata()));
+        } catch(RelocationErrorException e) {
+            return false;
+        }
+        remote.put(metadata);
+        if(metadata instanceof FileMetadata && hash.equalsIgnoreCase(((FileMetadata) metadata).getContentHash())) {
+            BYTES.get("copy").add(((FileMetadata) metadata).getSize());
+            FILES.get("copy").increment();
+            return true;
+        }
+        isNew.set(false);
+        return false;
+    }
+
+    /**
+     * Run a transfer of a local file on the shared {@link Transfers} in order of its priority,
+     * and wait until it is done.
+     * @param location the location of the file.
+     * @param size the size of the file in bytes.
+     * @param transfer the transfer to run.
+     * @return the result of the transfer.
+     * @throws IOException when the transfer failed with an I/O error.
+     * @throws DbxException when the transfer failed with a Dropbox error.
+     * @throws InterruptedException when the thread is interrupted while waiting for room in the queue.
+     */
+    private <T> T transfer(Location location, long size, Transfers.Transfer<T> transfer) throws IOException, DbxException, InterruptedException {
+        CompletableFuture<T> future = transfers.submit(Priority.of(location, size, location.modified()), transfer);
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            rethrow(e);
+            throw e;
+        }
+    }
+
     /**
      * Get whether a file or directory is allowed and able to be downloaded.
      * @param location the location of the potentially downloaded file.
@@ -168,12 +287,12 @@ public class Client {
         if(location.directory()) {
             return true;
         } else {
-            Optional<FileMetadata> metadata = metadataFile(location);
+            Optional<RemoteIndex.Entry> metadata = metadataFile(location);
             if(metadata.isPresent()) {
-                if(metadata.get().getContentHash().equalsIgnoreCase(location.hash())) {
+                if(metadata.get().hash().equalsIgnoreCase(location.hash())) {
                     return false;
                 } else {
-                    Instant remoteModified = metadata.get().getClientModified().toInstant(),
+                    Instant remoteModified = metadata.get().modified(),
                             localModified = location.modified();
                     return remoteModified.isAfter(localModified);
                 }
@@ -185,33 +304,179 @@ public class Client {
 
     /**
      * Download a file or directory from remotely to locally.
+     *
+     * The file is streamed into a hidden temporary file next to it while being hashed,
+     * and only moved into place once the hash matches the remote content hash. Readers
+     * never see a partially written file, and the verified hash is remembered in the
+     * {@link HashIndex} so the file does not have to be read again.
+     *
+     * Files larger than DROPBOX_DOWNLOAD_RESUME_MB (default 64) are downloaded
+     * with {@link #downloadPartial(Location, RemoteIndex.Entry)} instead.
      * @param location the location of the newly downloaded file.
      * @return whether it was allowed to be downloaded @{{@link #downloadable(Location)}},
      *         and whether the operation was a success.
-     * @throws IOException when the system is unable to write the file to disk.
+     * @throws IOException when the system is unable to write the file to disk,
+     *                     or the downloaded content does not match.
      * @throws DbxException when Dropbox is unable to stream the file from their servers.
      */
     public boolean download(Location location) throws IOException, DbxException {
         if(downloadable(location)) {
             location.mkdir();
             if(!location.directory()) {
-                FileOutputStream output = new FileOutputStream(location.local().toString());
-                client.files().downloadBuilder(location.remote().toString()).download(output);
+                Optional<RemoteIndex.Entry> entry = metadataFile(location);
+                if(entry.isPresent() && entry.get().size() > DOWNLOAD_RESUME) {
+                    downloadPartial(location, entry.get());
+                    return true;
+                }
+                Path path = location.local();
+                // Not a temp file, which would be owner-only and keep that mode when it is moved into place
+                Path temp = path.resolveSibling("." + path.getFileName() + "." + UUID.randomUUID() + ".download");
+                try {
+                    Hash hash = new Hash();
+                    FileMetadata metadata = scheduler.read("files/download", () -> {
+                        hash.reset();
+                        try(OutputStream output = new DigestOutputStream(Files.newOutputStream(temp), hash)) {
+                            return client.files().downloadBuilder(location.remote().toString()).download(output);
+                        }
+                    });
+                    verify(location, temp, hash, metadata.getContentHash());
+                    remote.put(metadata);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Download a large file into a partial file that survives failures and restarts.
+     *
+     * The partial file is named after the remote revision, and partial files of any
+     * other revision are thrown away. When the connection fails, the scheduler retries
+     * the download, which resumes from the end of the partial file with a range request.
+     * @param location the location of the newly downloaded file.
+     * @param entry the mirrored metadata of the remote file.
+     * @throws IOException when the system is unable to write the file to disk,
+     *                     or the downloaded content does not match.
+     * @throws DbxException when Dropbox is unable to stream the file from their servers.
+     */
+    private void downloadPartial(Location location, RemoteIndex.Entry entry) throws IOException, DbxException {
+        Path path = location.local();
+        Path partial = path.resolveSibling("." + path.getFileName() + "." + entry.rev() + ".partial");
+        deletePartials(path, partial);
+        Hash hash = new Hash();
+        scheduler.read("files/download", () -> {
+            long offset = Files.exists(partial) ? Files.size(partial) : 0;
+            hash.reset();
+            try(FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ)) {
+                hash.update(channel, 0, offset);
+            }
+            if(offset >= entry.size()) return null;
+            try(OutputStream output = new DigestOutputStream(Files.newOutputStream(partial, StandardOpenOption.APPEND), hash)) {
+                return client.files().downloadBuilder(location.remote().toString())
+                    .withRev(entry.rev())
+                    .range(offset)
+                    .download(output);
+            }
+        });
+        verify(location, partial, hash, entry.hash());
+    }
+
+    /**
+     * Delete the partial downloads of a file, or of every file in a folder,
+     * such as when the file was deleted or moved remotely.
+     * @param path the local path of the file or folder.
+     * @param keep a partial download to keep, such as the one of the current revision.
+     * @throws IOException when a partial download cannot be deleted.
+     */
+    private static void deletePartials(Path path, Path... keep) throws IOException {
+        String prefix = "." + path.getFileName() + ".";
+        try(DirectoryStream<Path> stale = Files.newDirectoryStream(path.getParent(), file ->
+                file.getFileName().toString().startsWith(prefix) &&
+                file.getFileName().toString().endsWith(".partial") &&
+                (keep.length == 0 || !file.equals(keep[0])))) {
+            for(Path file : stale) {
+                Files.deleteIfExists(file);
+            }
+        } catch(NoSuchFileException e) {
+            // The parent folder is gone, along with any partial download in it
+        }
+        if(Files.isDirectory(path)) {
+            try(Stream<Path> files = Files.walk(path)) {
+                List<Path> partials = files.filter(file -> file.getFileName().toString().startsWith(".") &&
+                                                           file.getFileName().toString().endsWith(".partial"))
+                                           .collect(Collectors.toList());
+                for(Path file : partials) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the hash of a downloaded file against the remote content hash,
+     * then move it into place and remember its hash.
+     * The downloaded file is deleted if the hash does not match.
+     * @param location the location of the newly downloaded file.
+     * @param download the path the file was downloaded to.
+     * @param hash the hash of the downloaded content.
+     * @param expected the remote content hash.
+     * @throws IOException when the content does not match or the file cannot be moved.
+     */
+    private void verify(Location location, Path download, Hash hash, String expected) throws IOException {
+        String actual = Hash.hex(hash.digest());
+        if(!actual.equalsIgnoreCase(expected)) {
+            Files.deleteIfExists(download);
+            throw new IOException("Downloaded content of " + location.remote() + " does not match, expected " + expected + " but was " + actual);
+        }
+        echoes.wrote(location.local(), download);
+        Files.move(download, location.local(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        location.root().hashes().put(location.local(), actual);
+        BYTES.get("download").add(Files.size(location.local()));
+        FILES.get("download").increment();
+    }
+
+    /**
+     * Count a file that was uploaded.
+     * @param size the size of the file in bytes.
+     */
+    static void uploaded(long size) {
+        BYTES.get("upload").add(size);
+        FILES.get("upload").increment();
+    }
+
+    /**
+     * Check whether changes can still be listed from a cursor,
+     * or whether Dropbox has reset it and everything needs to be listed again.
+     * @param cursor the cursor of a previous listing.
+     * @return whether the cursor can be continued from.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot list files remotely.
+     */
+    public boolean resumable(String cursor) throws IOException, DbxException {
+        try {
+            scheduler.read("files/list_folder/continue", () -> client.files().listFolderContinue(cursor));
+            return true;
+        } catch(ListFolderContinueErrorException e) {
+            if(e.errorValue.isReset()) return false;
+            throw e;
+        }
+    }
+
     /**
      * Delete a file or directory locally and remotely.
      * @param location the location of the object to delete.
      * @return whether the operation resulted in a deleted file.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
      * @throws DbxException when the file is unable to be deleted remotely.
      */
-    public boolean delete(Location location) throws DbxException {
+    public boolean delete(Location location) throws IOException, DbxException {
         try {
-            client.files().deleteV2(location.remote().toString());
+            scheduler.write("files/delete_v2", () -> client.files().deleteV2(location.remote().toString()));
+            remote.remove(location);
+            location.root().hashes().remove(location.local());
             return true;
         } catch(DeleteErrorException e) {
             // Ignore de-syncing delete errors
@@ -222,158 +487,423 @@ public class Client {
     /**
      * Download all files from remotely to locally, blocking the current thread.
      *
-     * In order to avoid a massive compute or networking spike, there are cooldowns
-     * between each download request and are federated among separately executed threads.
+     * Downloads run on the shared {@link Transfers} pool in order of their {@link Priority}.
+     * Listing the next page of files blocks while its queue is full, so the listing never runs far ahead.
+     *
+     * Once every download is done, the cursor at the end of the listing is saved in the
+     * checkpoint, so that {@link #pull(Location, Checkpoint)} continues right where it ended.
+     * If any download failed, the cursor is not saved, so that the batch runs again.
      *
      * @param location the root location from where to recursively download all other
      *                 files and directories.
+     * @param checkpoint the checkpoint to save the cursor in.
      * @return how many new files and directories were downloaded.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler,
+     *                     or any of the downloads failed.
      * @throws DbxException when Dropbox cannot download or list files remotely.
-     * @throws InterruptedException when the currently blocking thread cannot sleep.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
      */
-    public int downloadBatch(Location location) throws DbxException, InterruptedException {
-        ListFolderResult result = client.files()
+    public int downloadBatch(Location location, Checkpoint checkpoint) throws IOException, DbxException, InterruptedException {
+        ListFolderResult result = scheduler.read("files/list_folder", () -> client.files()
                 .listFolderBuilder(location.remote().toString())
-                .withIncludeDeleted(false)
+                .withIncludeDeleted(true)
                 .withIncludeMountedFolders(true)
                 .withIncludeMediaInfo(false)
                 .withRecursive(true)
-                .start();
-        AtomicInteger changed = new AtomicInteger(0);
-        Random random = new Random();
-        List<Thread> threads = new ArrayList<>();
+                .start());
+        // Only count the downloads, so that listing millions of files does not keep a future for each
+        Semaphore done = new Semaphore(0);
+        AtomicInteger changed = new AtomicInteger(), failed = new AtomicInteger();
+        int downloads = 0;
         while(true) {
             for(Metadata metadata : result.getEntries()) {
-                Location loc = Location.fromMetadata(metadata);
-                Thread fetch = new Thread(() -> {
-                    try {
-                        if(download(loc)) changed.incrementAndGet();
-                    } catch(IOException | DbxException e) {
-                        e.printStackTrace();
+                remote.put(metadata);
+                if(metadata instanceof DeletedMetadata) continue;
+                Location loc = location.root().fromMetadata(metadata);
+                transfers.submit(priority(loc, metadata), () -> download(loc)).whenComplete((downloaded, error) -> {
+                    if(error != null) {
+                        (error instanceof CompletionException && error.getCause() != null ? error.getCause() : error).printStackTrace();
+                        failed.incrementAndGet();
+                    } else if(downloaded) {
+                        changed.incrementAndGet();
                     }
+                    done.release();
                 });
-                fetch.setName(loc.remote().toString());
-                fetch.setPriority(1);
-                fetch.start();
-                threads.add(fetch);
-                Thread.sleep(random.nextInt(10));
+                downloads++;
             }
             if(result.getHasMore()) {
-                result = client.files().listFolderContinue(result.getCursor());
+                String cursor = result.getCursor();
+                result = scheduler.read("files/list_folder/continue", () -> client.files().listFolderContinue(cursor));
             } else {
+                remote.seed();
                 break;
             }
-            Thread.sleep(100);
         }
-        while(threads.stream().anyMatch(Thread::isAlive)) {
-            Thread.sleep(100);
+        done.acquire(downloads);
+        if(failed.get() > 0) {
+            // Without the cursor, the whole batch runs again instead of skipping the failed files
+            throw new IOException(failed.get() + " of " + downloads + " downloads failed");
         }
-        return changed.intValue();
+        checkpoint.cursor(result.getCursor());
+        return changed.get();
     }
 
     /**
      * Watch for changes to remote files and download them locally, blocking the current thread.
+     *
+     * Listing and applying changes run as a pipeline. The current thread lists pages of changes
+     * into a {@link PullQueue}, which only keeps the latest change of every path, while another
+     * thread applies them. Files are downloaded on the shared {@link Transfers} pool in order of
+     * their {@link Priority}, so a slow download never holds up listing the next page.
+     *
+     * A file is only downloaded once at a time, and a deleted folder waits for the downloads
+     * below it. Continues from the cursor in the checkpoint when there is one, and saves the
+     * cursor of every page in it once that page and every page before it are applied.
      * @param location the relative root location of where to download files to.
+     * @param checkpoint the checkpoint to continue from and save the cursor in.
      * @throws IOException when files cannot be downloaded properly.
      * @throws DbxException when Dropbox cannot list or find files remotely.
      * @throws InterruptedException when the currently blocking thread cannot sleep.
      */
-    public void pull(Location location) throws IOException, DbxException, InterruptedException {
-        ListFolderGetLatestCursorResult resultCursor = client.files()
-            .listFolderGetLatestCursorBuilder(location.remote().toString())
-            .withIncludeDeleted(true)
-            .withIncludeMountedFolders(true)
-            .withIncludeMediaInfo(false)
-            .withRecursive(true)
-            .start();
-        String cursor = resultCursor.getCursor();
-        while(true) {
-            ListFolderLongpollResult resultLongpoll = clientLongpoll.files().listFolderLongpoll(cursor, 120 /* seconds */);
-            if(resultLongpoll.getChanges()) {
-                while(true) {
-                    ListFolderResult resultList = client.files()
-                        .listFolderContinue(cursor);
-                    for(Metadata metadata : resultList.getEntries()) {
-                        Location loc = Location.fromMetadata(metadata);
-                        if(metadata instanceof FileMetadata) {
-                            download(loc);
-                        } else if(metadata instanceof FolderMetadata) {
-                            loc.mkdir();
-                        } else if(metadata instanceof DeletedMetadata) {
-                            loc.local().toFile().delete();
+    public void pull(Location location, Checkpoint checkpoint) throws IOException, DbxException, InterruptedException {
+        String cursor = checkpoint.cursor();
+        if(cursor == null) {
+            ListFolderGetLatestCursorResult resultCursor = scheduler.read("files/list_folder/get_latest_cursor", () -> client.files()
+                .listFolderGetLatestCursorBuilder(location.remote().toString())
+                .withIncludeDeleted(true)
+                .withIncludeMountedFolders(true)
+                .withIncludeMediaInfo(false)
+                .withRecursive(true)
+                .start());
+            cursor = resultCursor.getCursor();
+        }
+        PullQueue queue = new PullQueue(PULL_QUEUE, committed -> {
+            if(remote.seeded()) checkpoint.cursor(committed);
+        });
+        PULL_QUEUED.put(queue::size, location.local().toString());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread lister = Thread.currentThread();
+        Thread applier = Threads.start("pull", () -> apply(location.root(), queue, failure, lister));
+        try {
+            while(true) {
+                String polled = cursor;
+                ListFolderLongpollResult resultLongpoll = scheduler.retry("files/list_folder/longpoll", () -> clientLongpoll.files().listFolderLongpoll(polled, 120 /* seconds */));
+                if(resultLongpoll.getChanges()) {
+                    while(true) {
+                        String continued = cursor;
+                        ListFolderResult resultList = scheduler.read("files/list_folder/continue", () -> client.files()
+                            .listFolderContinue(continued));
+                        for(Metadata metadata : resultList.getEntries()) {
+                            remote.put(metadata);
                         }
+                        cursor = resultList.getCursor();
+                        queue.add(resultList.getEntries(), cursor);
+                        if(!resultList.getHasMore()) break;
                     }
-                    cursor = resultList.getCursor();
-                    if(!resultList.getHasMore()) break;
+                }
+                rethrow(failure.get());
+                Long backoff = resultLongpoll.getBackoff();
+                if(backoff != null) {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(backoff));
                 }
             }
-            Long backoff = resultLongpoll.getBackoff();
-            if(backoff != null) {
-                Thread.sleep(TimeUnit.SECONDS.toMillis(backoff));
+        } catch(InterruptedIOException | InterruptedException e) {
+            rethrow(failure.get());
+            throw e;
+        } finally {
+            applier.interrupt();
+        }
+    }
+
+    /**
+     * Apply the changes in a queue until the current thread is interrupted or a change fails.
+     * Downloads that are still queued or running then are cancelled, so none of them outlive the pull.
+     * @param root the root the changes are applied under.
+     * @param queue the queue of changes to apply.
+     * @param failure set to the error of the first change that failed.
+     * @param lister the thread listing the changes, which is interrupted when a change fails.
+     */
+    private void apply(Root root, PullQueue queue, AtomicReference<Throwable> failure, Thread lister) {
+        Map<Location, CompletableFuture<Boolean>> downloads = new ConcurrentHashMap<>();
+        try {
+            while(failure.get() == null) {
+                PullQueue.Item item = queue.take();
+                Metadata metadata = item.metadata();
+                Location loc = root.fromMetadata(metadata);
+                if(metadata instanceof FileMetadata) {
+                    CompletableFuture<Boolean> running = downloads.get(loc);
+                    if(running != null) {
+                        running.whenComplete((downloaded, error) -> queue.retry(item));
+                        continue;
+                    }
+                    Instant changed = ((FileMetadata) metadata).getServerModified().toInstant();
+                    CompletableFuture<Boolean> download = transfers.submit(priority(loc, metadata), () -> {
+                        boolean downloaded = download(loc);
+                        if(downloaded) PULL_LAG.observe(Duration.between(changed, Instant.now()).toMillis() / 1e3);
+                        return downloaded;
+                    });
+                    downloads.put(loc, download);
+                    download.whenComplete((downloaded, error) -> {
+                        downloads.remove(loc, download);
+                        if(error == null) {
+                            queue.done(item);
+                        } else if(failure.compareAndSet(null, error)) {
+                            lister.interrupt();
+                        }
+                    });
+                } else {
+                    if(metadata instanceof FolderMetadata) {
+                        loc.mkdir();
+                    } else if(metadata instanceof DeletedMetadata) {
+                        for(Map.Entry<Location, CompletableFuture<Boolean>> download : downloads.entrySet()) {
+                            if(download.getKey().local().startsWith(loc.local())) {
+                                download.getValue().handle((downloaded, error) -> null).join();
+                            }
+                        }
+                        try {
+                            // Renames are listed as deletes too, so this also drops partial downloads of the old name
+                            deletePartials(loc.local());
+                        } catch(IOException e) {
+                            e.printStackTrace();
+                        }
+                        if(loc.local().toFile().delete()) echoes.deleted(loc.local());
+                    }
+                    queue.done(item);
+                }
+            }
+        } catch(InterruptedException e) {
+            // Pull stopped listing changes
+        } catch(RuntimeException e) {
+            if(failure.compareAndSet(null, e)) lister.interrupt();
+        } finally {
+            for(CompletableFuture<Boolean> download : downloads.values()) {
+                download.cancel(true);
             }
         }
     }
 
+    /**
+     * Throw the error of a transfer or stage that failed, if there is one.
+     * @param error the error, or null.
+     * @throws IOException when the error is an I/O error.
+     * @throws DbxException when the error is a Dropbox error.
+     */
+    private static void rethrow(Throwable error) throws IOException, DbxException {
+        if(error == null) return;
+        if(error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if(error instanceof IOException) throw (IOException) error;
+        if(error instanceof DbxException) throw (DbxException) error;
+        if(error instanceof RuntimeException) throw (RuntimeException) error;
+        if(error instanceof Error) throw (Error) error;
+        throw new IOException(error);
+    }
+
     /**
      * Listens to local changes to files or directories and pushes them remotely, blocking the current thread.
+     *
+     * Changes are detected through a recursive {@link Watcher}, so only paths reported as
+     * changed are checked. The whole tree is only walked again when the watcher lost events.
+     * Changes that pull made are recognized in the {@link Echoes} and skipped.
+     * Changed paths are held back by a {@link Debounce} until they stop changing, so files that
+     * are still being written are not uploaded until they are done, or until they waited too long.
+     * Small files and folders changed in the same burst are committed together in an {@link UploadBatch},
+     * and deleted files and folders are deleted together in a {@link DeleteBatch}. Files and folders that
+     * were renamed or moved are recognized by their file key and moved on the server in a {@link MoveBatch}.
+     *
+     * When the checkpoint has a snapshot from a previous run, anything that changed
+     * locally since then is pushed first. The snapshot is then kept in the checkpoint.
      * @param location the relative root location of where to listen to files.
+     * @param checkpoint the checkpoint to continue from and save the snapshot in.
      * @throws IOException when files cannot be properly uploaded.
      * @throws DbxException when Dropbox cannot list or find files remotely.
      * @throws InterruptedException when the currently blocking thread cannot sleep.
      */
-    public void push(Location location) throws IOException, InterruptedException, DbxException {
+    public void push(Location location, Checkpoint checkpoint) throws IOException, InterruptedException, DbxException {
         location.mkdir();
-        Supplier<Map<Location, Long>> traversal = () -> {
+        Supplier<Map<Location, Stat>> traversal = () -> {
+            long start = System.nanoTime();
             try {
-                return Files.walk(location.local())
-                            .collect(Collectors.toMap(Location::fromLocal, path -> path.toFile().lastModified()));
+                return location.root().walk(location.local()).stream()
+                            .filter(loc -> !Debounce.ignored(loc.local()))
+                            .collect(Collectors.toMap(Function.identity(), loc -> Stat.of(loc.attributes().get()),
+                                                      (a, b) -> a, ConcurrentHashMap::new));
             } catch(IOException ioe) {
                 throw new RuntimeException(ioe);
+            } finally {
+                PUSH_SCAN.observe((System.nanoTime() - start) / 1e9);
             }
         };
-        Map<Location, Long> cache = traversal.get();
-        while(true) {
-            Map<Location, Long> current = traversal.get();
-            Set<Location> deleted = new HashSet<>();
-            for(Location loc : cache.keySet()) {
-                if(!current.containsKey(loc)) {
-                    for(Location loc1 : loc.all()) {
-                        delete(loc1);
-                        deleted.add(loc1);
+        UploadBatch batch = new UploadBatch(client, remote, transfers, scheduler);
+        MoveBatch moves = new MoveBatch(client, remote, scheduler);
+        DeleteBatch deletes = new DeleteBatch(client, remote, scheduler);
+        Debounce debounce = new Debounce();
+        PUSH_UNSETTLED.put(debounce::size, location.local().toString());
+        echoes.clear();
+        try(Watcher watcher = new Watcher(location.local())) {
+            Map<Location, Stat> cache = traversal.get();
+            Map<Location, Stat> saved = checkpoint.snapshot();
+            if(saved != null) {
+                pushDiff(Diff.of(saved, cache, this::same), cache, batch, moves, deletes);
+                batch.flush();
+            }
+            checkpoint.snapshot(cache);
+            while(true) {
+                Watcher.Changes changes = watcher.take(PUSH_SETTLE, debounce.next().orElse(PUSH_IDLE));
+                if(changes.overflow()) {
+                    Map<Location, Stat> current = traversal.get();
+                    pushDiff(Diff.of(cache, current, this::same), current, batch, moves, deletes);
+                    cache = current;
+                    checkpoint.snapshot(cache);
+                } else {
+                    debounce.add(changes.paths());
+                    Set<Path> settled = debounce.settled();
+                    if(settled.isEmpty()) continue;
+                    if(pushChanges(location.root(), cache, settled, batch, moves, deletes)) {
+                        checkpoint.changed();
                     }
                 }
+                batch.flush();
+                location.root().hashes().save();
             }
-            for(Location loc : current.keySet()) {
-                if(deleted.contains(loc)) continue;
-                if(!cache.containsKey(loc) ||
-                   loc.modified().toEpochMilli() > cache.get(loc)) {
-                    for(Location loc1 : loc.all()) {
-                        upload(loc1);
+        }
+    }
+
+    /**
+     * Push the differences between two snapshots of the local files.
+     *
+     * Moved files and folders are moved on the server first. A move that cannot be made,
+     * such as when the source was never uploaded, is pushed as a delete of the source and
+     * an upload of the destination and everything below it instead. Everything below a
+     * changed folder is in the current snapshot too, so only the locations in the {@link Diff}
+     * are uploaded otherwise.
+     * @param diff the differences between the snapshots.
+     * @param after the current snapshot of locations and their attributes.
+     * @param batch the batch to commit small files and folders with.
+     * @param moves the batch to move files and folders with.
+     * @param deletes the batch to delete files and folders with.
+     * @throws IOException when files cannot be properly uploaded.
+     * @throws DbxException when Dropbox cannot list or find files remotely.
+     * @throws InterruptedException when a batch is interrupted while committing.
+     */
+    private void pushDiff(Diff diff, Map<Location, Stat> after, UploadBatch batch, MoveBatch moves, DeleteBatch deletes) throws IOException, DbxException, InterruptedException {
+        Map<Location, Location> failed = new LinkedHashMap<>();
+        for(Map.Entry<Location, Location> move : diff.moved().entrySet()) {
+            Location from = move.getKey(), to = move.getValue();
+            if(!to.file().isHidden() && metadata(from).isPresent() && !metadata(to).isPresent()) {
+                moves.add(from, to);
+            } else {
+                failed.put(from, to);
+            }
+        }
+        failed.putAll(moves.flush());
+        Set<Location> uploads = new LinkedHashSet<>(diff.changed());
+        for(Map.Entry<Location, Location> move : failed.entrySet()) {
+            deletes.add(move.getKey());
+            Path to = move.getValue().local();
+            for(Location loc : after.keySet()) {
+                if(loc.local().startsWith(to)) uploads.add(loc);
+            }
+        }
+        for(Location loc : diff.deleted()) {
+            if(!echoes.echo(loc.local(), null)) deletes.add(loc);
+        }
+        deletes.flush();
+        for(Location loc : uploads) {
+            Stat stat = after.get(loc);
+            if(stat != null && !stat.directory() && echoes.echo(loc.local(), stat)) continue;
+            upload(loc, batch);
+        }
+    }
+
+    /**
+     * Push a set of changed local paths and update the snapshot in place.
+     * A folder that is gone takes everything below it in the snapshot with it,
+     * so that renaming a folder is pushed as a single move.
+     * @param root the root the paths are under.
+     * @param cache the snapshot of locations and their attributes.
+     * @param paths the local paths that changed.
+     * @param batch the batch to commit small files and folders with.
+     * @param moves the batch to move files and folders with.
+     * @param deletes the batch to delete files and folders with.
+     * @return whether the snapshot changed.
+     * @throws IOException when files cannot be properly uploaded.
+     * @throws DbxException when Dropbox cannot list or find files remotely.
+     * @throws InterruptedException when a batch is interrupted while committing.
+     */
+    private boolean pushChanges(Root root, Map<Location, Stat> cache, Set<Path> paths, UploadBatch batch, MoveBatch moves, DeleteBatch deletes) throws IOException, DbxException, InterruptedException {
+        Map<Location, Stat> before = new HashMap<>();
+        Map<Location, Stat> after = new HashMap<>();
+        Set<Path> gone = new HashSet<>();
+        for(Path path : paths) {
+            Location loc = root.fromLocal(path);
+            Stat previous = cache.get(loc);
+            if(previous != null) {
+                before.put(loc, previous);
+            }
+            Optional<BasicFileAttributes> attributes = loc.attributes();
+            if(attributes.isPresent()) {
+                after.put(loc, Stat.of(attributes.get()));
+            } else if(previous != null && previous.directory()) {
+                gone.add(path);
+            }
+        }
+        if(!gone.isEmpty()) {
+            for(Map.Entry<Location, Stat> entry : cache.entrySet()) {
+                for(Path parent = entry.getKey().local().getParent(); parent != null; parent = parent.getParent()) {
+                    if(gone.contains(parent)) {
+                        before.put(entry.getKey(), entry.getValue());
+                        break;
                     }
                 }
             }
-            cache = current;
-            Thread.sleep(1000);
         }
+        pushDiff(Diff.of(before, after, this::same), after, batch, moves, deletes);
+        boolean changed = false;
+        for(Location loc : before.keySet()) {
+            if(!after.containsKey(loc)) changed |= cache.remove(loc) != null;
+        }
+        for(Map.Entry<Location, Stat> entry : after.entrySet()) {
+            changed |= !entry.getValue().equals(cache.put(entry.getKey(), entry.getValue()));
+        }
+        return changed;
+    }
+
+    /**
+     * Check whether a file that disappeared and a file that appeared have the same content,
+     * by comparing the remote content hash of the one with the local content hash of the other.
+     * @param from the location of the file that disappeared.
+     * @param to the location of the file that appeared.
+     * @return whether the files have the same content.
+     */
+    private boolean same(Location from, Location to) {
+        return remote.get(from)
+            .filter(entry -> !entry.folder() && entry.hash().equalsIgnoreCase(to.hash()))
+            .isPresent();
+    }
+
+    /**
+     * Get the priority of downloading a file or folder.
+     * @param location the location of the file or folder.
+     * @param metadata the remote metadata of the file or folder.
+     * @return the priority of the download.
+     */
+    private static Priority priority(Location location, Metadata metadata) {
+        if(metadata instanceof FileMetadata) {
+            FileMetadata file = (FileMetadata) metadata;
+            return Priority.of(location, file.getSize(), file.getServerModified().toInstant());
+        }
+        return Priority.NONE;
     }
 
     /**
      * Create an internal Dropbox client.
      * @param accessToken the Dropbox access token.
-     * @param timeout the timeout for http operations.
+     * @param transport the shared transport to make requests with.
      * @return the internal Dropbox client.
      */
-    private DbxClientV2 client(String accessToken, Duration... timeout) {
-        StandardHttpRequestor.Config.Builder builder = StandardHttpRequestor.Config.DEFAULT_INSTANCE.copy();
-        StandardHttpRequestor.Config config;
-        if(timeout.length > 0) {
-            config = builder.withReadTimeout(timeout[0].toNanos(), TimeUnit.NANOSECONDS).build();
-        } else {
-            config = builder.build();
-        }
-        StandardHttpRequestor requestor = new StandardHttpRequestor(config);
+    private DbxClientV2 client(String accessToken, Transport transport) {
         DbxRequestConfig requestConfig = DbxRequestConfig.newBuilder(clientId())
-                .withHttpRequestor(requestor)
+                .withHttpRequestor(transport)
                 .build();
         return new DbxClientV2(requestConfig, accessToken);
     }
@@ -0,0 +1,49 @@
+package net.electroid;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Tunable settings of the syncing application.
+ *
+ * Settings are read from environment variables, the same way
+ * the Docker container is configured, and fall back to a default
+ * when they are undefined or malformed.
+ */
+public final class Config {
+
+    private Config() {}
+
+    /**
+     * Get an integer setting.
+     * @param name the name of the environment variable.
+     * @param def the default value.
+     * @return the configured or default value.
+     */
+    public static int integer(String name, int def) {
+        try {
+            return Integer.parseInt(System.getenv(name).trim());
+        } catch(NullPointerException | NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Get a comma-separated list setting.
+     * @param name the name of the environment variable.
+     * @return the configured values, or an empty list.
+     */
+    public static List<String> list(String name) {
+        String value = System.getenv(name);
+        if(value == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(value.split(","))
+            .map(String::trim)
+            .filter(item -> !item.isEmpty())
+            .collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,160 @@
+package net.electroid;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Holds back changed local paths until they stopped changing, so that a file
+ * which is still being written is not uploaded and hashed over and over.
+ *
+ * A path settles once its size, modified time and file key stayed the same for
+ * the quiet period, or once it has been held back for the maximum delay, so that
+ * a file that is appended to all the time is still synced every so often.
+ * A folder only has to keep existing, since adding files to it changes its modified time.
+ * A path that was deleted settles like any other, so a rename settles all at once.
+ * Files that the sync writes under its root itself are never held back, since they can
+ * never be uploaded and would otherwise wake push every time they are saved.
+ */
+public class Debounce {
+
+    private final long quiet;
+    private final long max;
+    private final Map<Path, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * Create a debounce.
+     * @param quiet how long a path has to stay the same.
+     * @param max how long a path is held back at most.
+     */
+    public Debounce(Duration quiet, Duration max) {
+        this.quiet = quiet.toNanos();
+        this.max = Math.max(this.quiet, max.toNanos());
+    }
+
+    /**
+     * Create a debounce with a quiet period of DROPBOX_PUSH_QUIET_SECONDS (default 2)
+     * and a maximum delay of DROPBOX_PUSH_MAX_DELAY_SECONDS (default 60).
+     */
+    public Debounce() {
+        this(Duration.ofSeconds(Math.max(0, Config.integer("DROPBOX_PUSH_QUIET_SECONDS", 2))),
+             Duration.ofSeconds(Math.max(0, Config.integer("DROPBOX_PUSH_MAX_DELAY_SECONDS", 60))));
+    }
+
+    /**
+     * Hold back paths that changed, reading their attributes once.
+     * A path that is already held back keeps when it was first seen.
+     * @param paths the local paths that changed.
+     */
+    public synchronized void add(Set<Path> paths) {
+        long now = System.nanoTime();
+        for(Path path : paths) {
+            if(ignored(path)) continue;
+            Optional<Stat> stat = stat(path);
+            Pending previous = pending.get(path);
+            if(previous == null) {
+                pending.put(path, new Pending(stat, now));
+            } else if(!previous.stat.equals(stat)) {
+                previous.stat = stat;
+                previous.changed = now;
+            }
+        }
+    }
+
+    /**
+     * Take the paths that settled, reading the attributes of each held back path again.
+     * @return the settled paths, in the order they were first seen.
+     */
+    public synchronized Set<Path> settled() {
+        Set<Path> settled = new LinkedHashSet<>();
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Pending>> iterator = pending.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Path, Pending> entry = iterator.next();
+            Pending path = entry.getValue();
+            if(now - path.seen < max) {
+                if(now - path.changed < quiet) continue;
+                Optional<Stat> stat = stat(entry.getKey());
+                if(!stat.equals(path.stat)) {
+                    path.stat = stat;
+                    path.changed = now;
+                    continue;
+                }
+            }
+            settled.add(entry.getKey());
+            iterator.remove();
+        }
+        return settled;
+    }
+
+    /**
+     * Get how long until the next held back path could settle.
+     * @return the time until then, or empty if nothing is held back.
+     */
+    public synchronized Optional<Duration> next() {
+        long now = System.nanoTime(), next = Long.MAX_VALUE;
+        for(Pending path : pending.values()) {
+            next = Math.min(next, Math.min(path.changed + quiet, path.seen + max) - now);
+        }
+        return pending.isEmpty() ? Optional.empty() : Optional.of(Duration.ofNanos(Math.max(0, next)));
+    }
+
+    /**
+     * Get how many paths are held back.
+     * @return the number of held back paths.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Get whether a path is a file that the sync writes under its root itself,
+     * such as the checkpoint, the hash index and temporary downloads.
+     * @param path the local path.
+     * @return whether the path should be ignored.
+     */
+    public static boolean ignored(Path path) {
+        Path name = path.getFileName();
+        if(name == null) return false;
+        String file = name.toString();
+        if(file.endsWith(".tmp")) file = file.substring(0, file.length() - 4);
+        return file.equals(Checkpoint.FILE_NAME) ||
+               file.equals(HashIndex.FILE_NAME) ||
+               file.startsWith(".") && (file.endsWith(".download") || file.endsWith(".partial"));
+    }
+
+    private static Optional<Stat> stat(Path path) {
+        try {
+            Stat stat = Stat.of(Files.readAttributes(path, BasicFileAttributes.class));
+            return Optional.of(stat.directory() ? new Stat(0, 0, stat.fileKey(), true) : stat);
+        } catch(IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * A held back path, with its attributes when they last changed.
+     */
+    private static class Pending {
+
+        private Optional<Stat> stat;
+        private final long seen;
+        private long changed;
+
+        private Pending(Optional<Stat> stat, long seen) {
+            this.stat = stat;
+            this.seen = seen;
+            this.changed = seen;
+        }
+
+    }
+
+}
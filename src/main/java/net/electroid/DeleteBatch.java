@@ -0,0 +1,124 @@
+package net.electroid;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.DeleteArg;
+import com.dropbox.core.v2.files.DeleteBatchJobStatus;
+import com.dropbox.core.v2.files.DeleteBatchLaunch;
+import com.dropbox.core.v2.files.DeleteBatchResult;
+import com.dropbox.core.v2.files.DeleteBatchResultEntry;
+import com.dropbox.core.v2.files.DeleteError;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Collects remote files and folders to delete and deletes them with batch jobs.
+ *
+ * Deleting a folder remotely deletes everything in it, so any location
+ * below a folder that is also being deleted is left out of the batch.
+ */
+public class DeleteBatch {
+
+    public static final int MAX_ENTRIES = 1000;
+
+    private final DbxClientV2 client;
+    private final RemoteIndex remote;
+    private final Scheduler scheduler;
+    private final Set<Location> pending = new LinkedHashSet<>();
+
+    public DeleteBatch(DbxClientV2 client, RemoteIndex remote, Scheduler scheduler) {
+        this.client = client;
+        this.remote = remote;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add a file or folder to delete.
+     * @param location the location of the file or folder.
+     */
+    public void add(Location location) {
+        pending.add(location);
+    }
+
+    /**
+     * Delete everything in the batch, blocking until the batch jobs are complete.
+     * Locations that were already deleted remotely count as deleted.
+     * @return how many locations were deleted, not counting ones below a deleted folder.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check a batch job.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public int flush() throws IOException, DbxException, InterruptedException {
+        if(pending.isEmpty()) return 0;
+        Set<Path> paths = pending.stream().map(Location::remote).collect(Collectors.toCollection(HashSet::new));
+        List<Location> roots = pending.stream()
+            .filter(location -> !hasAncestor(location.remote(), paths))
+            .collect(Collectors.toList());
+        pending.clear();
+        int deleted = 0;
+        for(int i = 0; i < roots.size(); i += MAX_ENTRIES) {
+            List<Location> chunk = roots.subList(i, Math.min(i + MAX_ENTRIES, roots.size()));
+            List<DeleteArg> args = new ArrayList<>();
+            for(Location location : chunk) {
+                args.add(new DeleteArg(location.remote().toString()));
+            }
+            DeleteBatchResult result = delete(args);
+            for(int j = 0; j < result.getEntries().size(); j++) {
+                DeleteBatchResultEntry entry = result.getEntries().get(j);
+                Location location = chunk.get(j);
+                if(entry.isSuccess() || notFound(entry.getFailureValue())) {
+                    remote.remove(location);
+                    location.root().hashes().remove(location.local());
+                    deleted++;
+                } else {
+                    System.err.println("Unable to delete " + location.remote() + ": " + entry.getFailureValue());
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Start a delete batch job and poll it until it is complete.
+     * @param args the paths to delete.
+     * @return the result for each path, in order.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check the batch job.
+     * @throws InterruptedException when the currently blocking thread cannot sleep.
+     */
+    private DeleteBatchResult delete(List<DeleteArg> args) throws IOException, DbxException, InterruptedException {
+        DeleteBatchLaunch launch = scheduler.write("files/delete_batch", () -> client.files().deleteBatch(args));
+        if(launch.isComplete()) {
+            return launch.getCompleteValue();
+        } else if(!launch.isAsyncJobId()) {
+            throw new DbxException("Unexpected delete batch launch " + launch);
+        }
+        return Jobs.await(() -> {
+            DeleteBatchJobStatus status = scheduler.read("files/delete_batch/check", () -> client.files().deleteBatchCheck(launch.getAsyncJobIdValue()));
+            if(status.isFailed()) {
+                throw new DbxException("Delete batch failed " + status.getFailedValue());
+            }
+            return status.isComplete() ? Optional.of(status.getCompleteValue()) : Optional.empty();
+        });
+    }
+
+    private static boolean hasAncestor(Path path, Set<Path> paths) {
+        for(Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if(paths.contains(parent)) return true;
+        }
+        return false;
+    }
+
+    private static boolean notFound(DeleteError error) {
+        return error.isPathLookup() && error.getPathLookupValue().isNotFound();
+    }
+
+}
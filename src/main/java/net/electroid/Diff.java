@@ -0,0 +1,204 @@
+package net.electroid;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * The differences between two snapshots of local files and their attributes.
+ *
+ * A location that disappeared and a location that appeared are paired as a move...
+ * a) when they have the same file key, which a rename keeps, and a file also kept its size and modified time
+ * b) otherwise, for files of the same size and modified time, when they are confirmed to have the same content
+ *
+ * A file key alone is not enough for files, since file systems reuse the inode
+ * of a deleted file right away. A file with the same key but a different size or
+ * modified time is only paired when it is confirmed to have the same content.
+ *
+ * Moving a folder moves everything in it, so a pair whose parents are also paired
+ * is implied and left out of the moves. Anything else below a moved folder is only
+ * found under the new path of the folder, so it is moved or deleted from there.
+ *
+ * Only the snapshots are compared, so computing a diff never touches the disk,
+ * except for confirming that files without a file key have the same content.
+ */
+final class Diff {
+
+    private final Map<Location, Location> moved;
+    private final List<Location> deleted;
+    private final List<Location> changed;
+
+    private Diff(Map<Location, Location> moved, List<Location> deleted, List<Location> changed) {
+        this.moved = moved;
+        this.deleted = deleted;
+        this.changed = changed;
+    }
+
+    /**
+     * Compare two snapshots, only pairing moves by file key.
+     * @param before the previous snapshot of locations and their attributes.
+     * @param after the current snapshot of locations and their attributes.
+     * @return the differences between the snapshots.
+     */
+    static Diff of(Map<Location, Stat> before, Map<Location, Stat> after) {
+        return of(before, after, (from, to) -> false);
+    }
+
+    /**
+     * Compare two snapshots.
+     * @param before the previous snapshot of locations and their attributes.
+     * @param after the current snapshot of locations and their attributes.
+     * @param same whether a file that disappeared has the same content as a file that appeared,
+     *             when they could not be paired by file key and attributes alone.
+     * @return the differences between the snapshots.
+     */
+    static Diff of(Map<Location, Stat> before, Map<Location, Stat> after, BiPredicate<Location, Location> same) {
+        List<Location> gone = new ArrayList<>();
+        Map<String, Location> goneKeys = new HashMap<>();
+        for(Map.Entry<Location, Stat> entry : before.entrySet()) {
+            if(!after.containsKey(entry.getKey())) {
+                gone.add(entry.getKey());
+                if(entry.getValue().fileKey() != null) {
+                    goneKeys.put(entry.getValue().fileKey(), entry.getKey());
+                }
+            }
+        }
+        List<Location> changed = new ArrayList<>();
+        List<Location> appeared = new ArrayList<>();
+        Map<Location, Location> pairs = new HashMap<>();
+        for(Map.Entry<Location, Stat> entry : after.entrySet()) {
+            Stat previous = before.get(entry.getKey());
+            if(previous != null) {
+                if(entry.getValue().modified() != previous.modified()) {
+                    changed.add(entry.getKey());
+                }
+                continue;
+            }
+            Location from = entry.getValue().fileKey() == null ? null : goneKeys.remove(entry.getValue().fileKey());
+            if(from != null && paired(from, before.get(from), entry.getKey(), entry.getValue(), same)) {
+                pairs.put(from, entry.getKey());
+            } else {
+                appeared.add(entry.getKey());
+            }
+        }
+        if(!appeared.isEmpty() && gone.size() > pairs.size()) {
+            Map<String, List<Location>> candidates = new HashMap<>();
+            for(Location location : gone) {
+                Stat stat = before.get(location);
+                if(!stat.directory() && !pairs.containsKey(location)) {
+                    candidates.computeIfAbsent(stat.size() + ":" + stat.modified(), key -> new ArrayList<>()).add(location);
+                }
+            }
+            appeared.removeIf(to -> {
+                Stat stat = after.get(to);
+                List<Location> from = stat.directory() ? null : candidates.get(stat.size() + ":" + stat.modified());
+                if(from == null) return false;
+                for(int i = 0; i < from.size(); i++) {
+                    if(same.test(from.get(i), to)) {
+                        pairs.put(from.remove(i), to);
+                        return true;
+                    }
+                }
+                return false;
+            });
+        }
+        changed.addAll(appeared);
+        Map<Path, Path> paths = new HashMap<>();
+        for(Map.Entry<Location, Location> pair : pairs.entrySet()) {
+            paths.put(pair.getKey().local(), pair.getValue().local());
+        }
+        List<Map.Entry<Location, Location>> roots = new ArrayList<>();
+        Map<Path, Path> rootPaths = new HashMap<>();
+        for(Map.Entry<Location, Location> pair : pairs.entrySet()) {
+            Path from = pair.getKey().local(), to = pair.getValue().local();
+            if(after.get(pair.getValue()).modified() != before.get(pair.getKey()).modified()) {
+                changed.add(pair.getValue());
+            }
+            boolean implied = from.getParent() != null &&
+                              from.getFileName().equals(to.getFileName()) &&
+                              to.getParent().equals(paths.get(from.getParent()));
+            if(!implied) {
+                roots.add(pair);
+                rootPaths.put(from, to);
+            }
+        }
+        // A folder is moved before anything that was moved out of it, which is then found under its new path
+        roots.sort(Comparator.comparingInt((Map.Entry<Location, Location> pair) -> pair.getKey().local().getNameCount())
+                             .thenComparing(pair -> pair.getValue().remote()));
+        Map<Location, Location> moved = new LinkedHashMap<>();
+        for(Map.Entry<Location, Location> pair : roots) {
+            moved.put(translate(pair.getKey(), rootPaths), pair.getValue());
+        }
+        List<Location> deleted = new ArrayList<>();
+        for(Location location : gone) {
+            if(!pairs.containsKey(location)) {
+                deleted.add(translate(location, rootPaths));
+            }
+        }
+        return new Diff(moved, deleted, changed);
+    }
+
+    /**
+     * Get where a location is after the folders above it were moved.
+     * @param location the location before the move.
+     * @param moves the local paths of moved files and folders, and where they were moved to.
+     * @return the location after the move, or the same location if nothing above it was moved.
+     */
+    private static Location translate(Location location, Map<Path, Path> moves) {
+        if(moves.isEmpty()) return location;
+        for(Path parent = location.local().getParent(); parent != null; parent = parent.getParent()) {
+            Path to = moves.get(parent);
+            if(to != null) {
+                return location.root().fromLocal(to.resolve(parent.relativize(location.local())));
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Check whether a location that disappeared and a location that appeared with the same file key are a move.
+     * @param from the location that disappeared.
+     * @param before its previous attributes.
+     * @param to the location that appeared.
+     * @param after its current attributes.
+     * @param same whether the two files have the same content.
+     * @return whether they are a move.
+     */
+    private static boolean paired(Location from, Stat before, Location to, Stat after, BiPredicate<Location, Location> same) {
+        if(before.directory() != after.directory()) return false;
+        if(after.directory()) return true;
+        return (before.size() == after.size() && before.modified() == after.modified()) || same.test(from, to);
+    }
+
+    /**
+     * Get the files and folders that were moved, without the ones implied by moving a folder above them,
+     * in the order they have to be moved in.
+     * @return the locations to move from, after the moves before them, and the locations to move to.
+     */
+    Map<Location, Location> moved() {
+        return moved;
+    }
+
+    /**
+     * Get the locations that are only in the previous snapshot and were not moved.
+     * @return the deleted locations.
+     */
+    List<Location> deleted() {
+        return deleted;
+    }
+
+    /**
+     * Get the locations that are new or were modified since the previous snapshot,
+     * including moved files that were also modified.
+     * @return the changed locations.
+     */
+    List<Location> changed() {
+        return changed;
+    }
+
+}
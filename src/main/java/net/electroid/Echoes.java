@@ -0,0 +1,106 @@
+package net.electroid;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A record of the remote changes that pull applied locally, which push
+ * would otherwise see as local changes and check against Dropbox again.
+ *
+ * Every file that pull writes is recorded with its attributes as written, and
+ * every file that pull deletes is recorded as gone. When push sees a path in exactly
+ * that state, the change is its own echo and is skipped without hashing the file
+ * or making a request. Any other change to the path, such as a local write right
+ * after the download, has different attributes and is pushed as usual.
+ *
+ * An echo is forgotten once push has seen it, or after ten minutes.
+ */
+public class Echoes {
+
+    private static final long EXPIRY = TimeUnit.MINUTES.toNanos(10);
+    private static final LongAdder SKIPPED = Metrics.counter("dropbox_sync_echoes_skipped_total", "Local changes that push skipped because pull made them.").get();
+
+    private final Map<Path, Echo> echoes = new ConcurrentHashMap<>();
+    private final AtomicLong expired = new AtomicLong(System.nanoTime());
+
+    /**
+     * Record a file that pull is about to move into place, with the attributes
+     * it keeps when it is moved.
+     * @param path the absolute path the file is moved to.
+     * @param written the absolute path of the written file before it is moved.
+     * @throws IOException when the written file cannot be read.
+     */
+    public void wrote(Path path, Path written) throws IOException {
+        record(path, Stat.of(Files.readAttributes(written, BasicFileAttributes.class)));
+    }
+
+    /**
+     * Record a file or folder that pull deleted.
+     * @param path the absolute path of the file or folder.
+     */
+    public void deleted(Path path) {
+        record(path, null);
+    }
+
+    /**
+     * Check whether a change that push sees was made by pull, and forget it if it was.
+     * @param path the absolute path of the file or folder.
+     * @param stat the attributes of the file as push sees it, or null if it is gone.
+     * @return whether the change is an echo of pull.
+     */
+    public boolean echo(Path path, Stat stat) {
+        Echo echo = echoes.get(path);
+        if(echo != null && Objects.equals(echo.stat, stat) && echoes.remove(path, echo)) {
+            SKIPPED.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get how many echoes are recorded.
+     * @return the number of echoes.
+     */
+    public int size() {
+        return echoes.size();
+    }
+
+    /**
+     * Forget every echo, such as when push starts from a fresh walk of the tree.
+     */
+    public void clear() {
+        echoes.clear();
+    }
+
+    private void record(Path path, Stat stat) {
+        long now = System.nanoTime(), last = expired.get();
+        if(now - last > EXPIRY && expired.compareAndSet(last, now)) {
+            echoes.values().removeIf(echo -> now - echo.recorded > EXPIRY);
+        }
+        echoes.put(path, new Echo(stat, now));
+    }
+
+    /**
+     * The attributes of a path as pull left it.
+     */
+    private static class Echo {
+
+        private final Stat stat;
+        private final long recorded;
+
+        private Echo(Stat stat, long recorded) {
+            this.stat = stat;
+            this.recorded = recorded;
+        }
+
+    }
+
+}
@@ -1,13 +1,18 @@
 package net.electroid;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * A simple hashing object for Dropbox files.
@@ -19,10 +24,15 @@ public final class Hash extends MessageDigest implements Cloneable  {
     private MessageDigest overallHasher;
     private MessageDigest blockHasher;
     private int blockPos = 0;
+    private boolean mapped = MAPPED;
 
     public static final int BLOCK_SIZE = 4 * 1024 * 1024;
     static final char[] HEX_DIGITS = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
 
+    private static final boolean MAPPED = Config.integer("DROPBOX_HASH_MMAP", 0) == 1;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(256 * 1024));
+    private static ForkJoinPool pool;
+
     public Hash()  {
         this(newSha256Hasher(), newSha256Hasher(), 0);
     }
@@ -34,33 +44,155 @@ public final class Hash extends MessageDigest implements Cloneable  {
         this.blockPos = blockPos;
     }
 
+    /**
+     * Hash a file by reading it through a {@link FileChannel}.
+     * @param path the path to the file.
+     * @return the hash of the file, or empty if it could not be read.
+     */
     public String hash(Path path) {
-        try {
-            byte[] buf = new byte[1024];
-            InputStream input = new FileInputStream(path.toString());
-            try {
-                while(true) {
-                    int n = input.read(buf);
-                    if(n < 0) break;
-                    update(buf, 0, n);
-                }
-            } finally {
-                input.close();
-            }
-            byte[] rawHash = digest();
-            char[] buff = new char[2 * rawHash.length];
-            int i = 0;
-            for(byte b : rawHash) {
-                buff[i++] = HEX_DIGITS[(b & 0xf0) >>> 4];
-                buff[i++] = HEX_DIGITS[b & 0x0f];
-            }
-            return new String(buff);
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            read(channel, 0, channel.size(), this, mapped);
+            return hex(digest());
         } catch(IOException ioe) {
             ioe.printStackTrace();
         }
         return "";
     }
 
+    /**
+     * Hash a file by hashing each of its blocks in parallel on a pool,
+     * then combining the block digests in order.
+     *
+     * Gives the same result as {@link #hash(Path)}, which is also used
+     * when the file is a single block or the pool has no parallelism.
+     * On a virtual thread, that is run on the pool too.
+     * @param path the path to the file.
+     * @param pool the pool to hash blocks on.
+     * @return the hash of the file, or empty if it could not be read.
+     */
+    public String hash(Path path, ForkJoinPool pool) {
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>();
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size <= BLOCK_SIZE || pool.getParallelism() <= 1) {
+                // Virtual threads would each keep a reusable buffer, so they hand the file to the pool
+                return Threads.virtual(Thread.currentThread()) ? pool.submit(() -> hash(path)).join() : hash(path);
+            }
+            for(long position = 0; position < size; position += BLOCK_SIZE) {
+                long start = position;
+                int length = (int) Math.min(BLOCK_SIZE, size - start);
+                tasks.add(pool.submit(() -> block(channel, start, length, mapped)));
+            }
+            MessageDigest overall = newSha256Hasher();
+            for(ForkJoinTask<byte[]> task : tasks) {
+                overall.update(task.join());
+            }
+            return hex(overall.digest());
+        } catch(IOException | UncheckedIOException e) {
+            tasks.forEach(task -> task.cancel(true));
+            e.printStackTrace();
+        }
+        return "";
+    }
+
+    /**
+     * Get the shared pool used to hash blocks of files in parallel.
+     * Its parallelism is set with DROPBOX_HASH_PARALLELISM and
+     * defaults to the number of available processors.
+     * @return the shared hashing pool.
+     */
+    public static synchronized ForkJoinPool pool() {
+        if(pool == null) {
+            int parallelism = Config.integer("DROPBOX_HASH_PARALLELISM", Runtime.getRuntime().availableProcessors());
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return pool;
+    }
+
+    /**
+     * Update the hash with a range of a file, such as the part of
+     * a file that was already downloaded.
+     * @param channel the channel of the file.
+     * @param position the offset of the range in the file.
+     * @param length the length of the range.
+     * @throws IOException when the file cannot be read.
+     */
+    public void update(FileChannel channel, long position, long length) throws IOException {
+        read(channel, position, length, this, mapped);
+    }
+
+    /**
+     * Set whether files are read through memory-mapped blocks instead
+     * of through a reusable direct buffer.
+     * Defaults to whether DROPBOX_HASH_MMAP is set to 1.
+     * @param mapped whether to memory-map files.
+     * @return this hash.
+     */
+    public Hash mapped(boolean mapped) {
+        this.mapped = mapped;
+        return this;
+    }
+
+    /**
+     * Compute the SHA-256 digest of a single block of a file.
+     * @param channel the channel of the file.
+     * @param position the offset of the block in the file.
+     * @param length the length of the block.
+     * @param mapped whether to memory-map the block.
+     * @return the digest of the block.
+     */
+    private static byte[] block(FileChannel channel, long position, int length, boolean mapped) {
+        MessageDigest hasher = newSha256Hasher();
+        try {
+            read(channel, position, length, hasher, mapped);
+        } catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Feed a range of a file into a digest, either from memory-mapped
+     * windows of one block or through the thread's reusable direct buffer.
+     * @param channel the channel of the file.
+     * @param position the offset of the range in the file.
+     * @param length the length of the range.
+     * @param digest the digest to update.
+     * @param mapped whether to memory-map the range.
+     * @throws IOException when the file cannot be read.
+     */
+    private static void read(FileChannel channel, long position, long length, MessageDigest digest, boolean mapped) throws IOException {
+        long end = position + length;
+        if(mapped) {
+            while(position < end) {
+                long window = Math.min(BLOCK_SIZE, end - position);
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, window));
+                position += window;
+            }
+        } else {
+            ByteBuffer buf = BUFFER.get();
+            while(position < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - position));
+                int n = channel.read(buf, position);
+                if(n < 0) break;
+                buf.flip();
+                digest.update(buf);
+                position += n;
+            }
+        }
+    }
+
+    static String hex(byte[] rawHash) {
+        char[] buff = new char[2 * rawHash.length];
+        int i = 0;
+        for(byte b : rawHash) {
+            buff[i++] = HEX_DIGITS[(b & 0xf0) >>> 4];
+            buff[i++] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(buff);
+    }
+
     @Override
     protected void engineUpdate(byte input) {
         finishBlockIfFull();
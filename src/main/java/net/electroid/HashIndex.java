@@ -0,0 +1,285 @@
+package net.electroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * A persistent index of Dropbox content hashes for local files.
+ *
+ * Each hash is remembered along with the size, modified time and file key
+ * (inode) of the file it was computed from. As long as that tuple has not
+ * changed, the hash is served from the index instead of reading the whole
+ * file again.
+ *
+ * The index is stored in a compact binary file under the local sync root.
+ */
+public class HashIndex {
+
+    public static final String FILE_NAME = ".dropbox-hashes";
+    private static final int MAGIC = 0x44424831; // "DBH1"
+    private static final Metrics.Family<LongAdder> LOOKUPS = Metrics.counter("dropbox_sync_hash_index_total", "Hashes served from the index or computed.", "result");
+    private static final Histogram HASH_TIME = Metrics.histogram("dropbox_sync_hash_seconds", "Time spent hashing files that were not in the index.").get();
+    private static final LongAdder HASHED = Metrics.counter("dropbox_sync_hashed_bytes_total", "Bytes of files hashed.").get();
+
+    private final Path root;
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    private HashIndex(Path root) {
+        this.root = root;
+        this.file = root.resolve(FILE_NAME);
+    }
+
+    /**
+     * Get the content hash of a local file, only reading the file
+     * if its size, modified time or file key changed since it was last hashed.
+     * @param path the absolute path to the local file.
+     * @return the content hash, or empty if the file is not a readable regular file.
+     */
+    public String hash(Path path) {
+        return hash(path, attributes(path));
+    }
+
+    /**
+     * Get the content hash of a local file, given attributes of the file that were already read.
+     * @param path the absolute path to the local file.
+     * @param attributes the attributes of the file, or null if it does not exist.
+     * @return the content hash, or empty if the file is not a readable regular file.
+     */
+    public String hash(Path path, BasicFileAttributes attributes) {
+        Entry before = stat(attributes);
+        if(before == null) return "";
+        String key = key(path);
+        Entry entry = entries.get(key);
+        if(entry != null && entry.matches(before)) {
+            hits.incrementAndGet();
+            LOOKUPS.get("hit").increment();
+            return entry.hash;
+        }
+        misses.incrementAndGet();
+        LOOKUPS.get("miss").increment();
+        long start = System.nanoTime();
+        String hash = new Hash().hash(path, Hash.pool());
+        HASH_TIME.observe((System.nanoTime() - start) / 1e9);
+        HASHED.add(before.size);
+        Entry after = stat(path);
+        if(!hash.isEmpty() && before.matches(after)) {
+            entries.put(key, before.withHash(hash));
+            dirty.set(true);
+        }
+        return hash;
+    }
+
+    /**
+     * Remember the hash of a file that was computed while writing it,
+     * against the current size, modified time and file key of the file.
+     * @param path the absolute path to the local file.
+     * @param hash the content hash of the file.
+     */
+    public void put(Path path, String hash) {
+        Entry stat = stat(path);
+        if(stat != null) {
+            entries.put(key(path), stat.withHash(hash));
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Forget the hash of a file or directory and everything below it.
+     * @param path the absolute path to the local file or directory.
+     */
+    public void remove(Path path) {
+        String key = key(path);
+        String prefix = key + "/";
+        if(entries.keySet().removeIf(k -> k.equals(key) || k.startsWith(prefix))) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Keep the hashes of a file or directory and everything below it after it was moved,
+     * since moving a file does not change its size, modified time or file key.
+     * @param from the previous absolute path to the local file or directory.
+     * @param to the new absolute path to the local file or directory.
+     */
+    public void move(Path from, Path to) {
+        String source = key(from), target = key(to);
+        String prefix = source + "/";
+        List<String> keys = entries.keySet().stream()
+            .filter(k -> k.equals(source) || k.startsWith(prefix))
+            .collect(Collectors.toList());
+        for(String key : keys) {
+            Entry entry = entries.remove(key);
+            if(entry != null) {
+                entries.put(target + key.substring(source.length()), entry);
+                dirty.set(true);
+            }
+        }
+    }
+
+    /**
+     * Get how many hashes were served from the index.
+     * @return number of index hits.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Get how many hashes had to be computed by reading the file.
+     * @return number of index misses.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Get how many files have a hash in the index.
+     * @return number of indexed files.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write the index to disk if it has changed since it was last saved.
+     * The file is written next to the old one and atomically moved into place.
+     */
+    public void save() {
+        if(!dirty.getAndSet(false)) return;
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        // Copy first, so the count matches the entries even while transfers change the index
+        Map<String, Entry> copy = new HashMap<>(entries);
+        try {
+            try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(copy.size());
+                for(Map.Entry<String, Entry> entry : copy.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    entry.getValue().write(output);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException ioe) {
+            dirty.set(true);
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Load the index stored under a local sync root.
+     * A missing or unreadable index file results in an empty index.
+     * @param root the local sync root.
+     * @return the loaded hash index.
+     */
+    public static HashIndex load(Path root) {
+        HashIndex index = new HashIndex(root);
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(index.file)))) {
+            if(input.readInt() != MAGIC) return index;
+            int size = input.readInt();
+            for(int i = 0; i < size; i++) {
+                index.entries.put(input.readUTF(), Entry.read(input));
+            }
+        } catch(NoSuchFileException e) {
+            // First start, nothing has been hashed yet
+        } catch(IOException ioe) {
+            index.entries.clear();
+            ioe.printStackTrace();
+        }
+        return index;
+    }
+
+    private String key(Path path) {
+        return root.relativize(path).toString();
+    }
+
+    private static Entry stat(Path path) {
+        return stat(attributes(path));
+    }
+
+    private static Entry stat(BasicFileAttributes attributes) {
+        if(attributes == null || !attributes.isRegularFile()) return null;
+        Object fileKey = attributes.fileKey();
+        return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey == null ? "" : fileKey.toString(), null);
+    }
+
+    private static BasicFileAttributes attributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch(IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * The stat tuple of a file and the hash computed from it.
+     */
+    private static class Entry {
+
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final String hash;
+
+        private Entry(long size, long modified, String fileKey, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+
+        private boolean matches(Entry other) {
+            return other != null &&
+                   size == other.size &&
+                   modified == other.modified &&
+                   fileKey.equals(other.fileKey);
+        }
+
+        private Entry withHash(String hash) {
+            return new Entry(size, modified, fileKey, hash);
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeLong(size);
+            output.writeLong(modified);
+            output.writeUTF(fileKey);
+            for(int i = 0; i < hash.length(); i += 2) {
+                output.writeByte(Integer.parseInt(hash.substring(i, i + 2), 16));
+            }
+        }
+
+        private static Entry read(DataInputStream input) throws IOException {
+            long size = input.readLong();
+            long modified = input.readLong();
+            String fileKey = input.readUTF();
+            char[] hash = new char[64];
+            for(int i = 0; i < hash.length; i += 2) {
+                int b = input.readUnsignedByte();
+                hash[i] = Hash.HEX_DIGITS[(b & 0xf0) >>> 4];
+                hash[i + 1] = Hash.HEX_DIGITS[b & 0x0f];
+            }
+            return new Entry(size, modified, fileKey, new String(hash));
+        }
+
+    }
+
+}
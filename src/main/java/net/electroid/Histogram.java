@@ -0,0 +1,107 @@
+package net.electroid;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A distribution of observed values, such as durations in seconds,
+ * counted in buckets with fixed upper bounds.
+ *
+ * Observing a value is lock-free, so histograms can be shared by many threads.
+ */
+public class Histogram {
+
+    /**
+     * Upper bounds, in seconds, that cover anything from a fast request to a long transfer.
+     */
+    public static final double[] SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 600};
+
+    private final double[] bounds;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * Create a histogram.
+     * @param bounds the upper bound of each bucket, in ascending order.
+     */
+    public Histogram(double... bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Create a histogram with the bounds in {@link #SECONDS}.
+     */
+    public Histogram() {
+        this(SECONDS);
+    }
+
+    /**
+     * Count a value in the first bucket whose upper bound is not below it.
+     * @param value the observed value.
+     */
+    public void observe(double value) {
+        int index = Arrays.binarySearch(bounds, value);
+        buckets.incrementAndGet(index >= 0 ? index : -index - 1);
+        count.incrementAndGet();
+        sum.add(value);
+    }
+
+    /**
+     * Get the upper bound of each bucket, not including the last bucket which has no bound.
+     * @return the bounds.
+     */
+    public double[] bounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Get how many values were counted in a bucket.
+     * @param index the index of the bucket, where {@link #bounds()}.length is the unbounded bucket.
+     * @return the number of values in the bucket.
+     */
+    public long bucket(int index) {
+        return buckets.get(index);
+    }
+
+    /**
+     * Get how many values were observed.
+     * @return the number of values.
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * Get the sum of all observed values.
+     * @return the sum.
+     */
+    public double sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Estimate a quantile as the upper bound of the bucket that contains it.
+     * @param quantile the quantile, between 0 and 1.
+     * @return the upper bound, infinity if it is in the last bucket, or 0 if nothing was observed.
+     */
+    public double quantile(double quantile) {
+        long total = count();
+        if(total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total), seen = 0;
+        for(int i = 0; i < bounds.length; i++) {
+            seen += buckets.get(i);
+            if(seen >= rank) return bounds[i];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public String toString() {
+        return count() + " (p50 " + quantile(0.5) + ", p99 " + quantile(0.99) + ")";
+    }
+
+}
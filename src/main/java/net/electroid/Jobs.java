@@ -0,0 +1,49 @@
+package net.electroid;
+
+import com.dropbox.core.DbxException;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Waits for asynchronous Dropbox batch jobs to complete.
+ */
+final class Jobs {
+
+    private Jobs() {}
+
+    /**
+     * Poll a job with exponential backoff until it is complete.
+     * @param check the request that checks the status of the job.
+     * @param <T> the result of the job.
+     * @return the result of the job.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot check the job or the job failed.
+     * @throws InterruptedException when the currently blocking thread cannot sleep.
+     */
+    static <T> T await(Check<T> check) throws IOException, DbxException, InterruptedException {
+        long backoff = 250;
+        while(true) {
+            Thread.sleep(backoff);
+            Optional<T> result = check.check();
+            if(result.isPresent()) {
+                return result.get();
+            }
+            backoff = Math.min(backoff * 2, 5000);
+        }
+    }
+
+    /**
+     * A request that checks the status of a job.
+     * @param <T> the result of the job.
+     */
+    interface Check<T> {
+        /**
+         * @return the result of the job, or empty while it is in progress.
+         * @throws IOException when the thread is interrupted while waiting for the scheduler.
+         * @throws DbxException when Dropbox cannot check the job or the job failed.
+         */
+        Optional<T> check() throws IOException, DbxException;
+    }
+
+}
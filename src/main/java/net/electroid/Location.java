@@ -1,16 +1,15 @@
 package net.electroid;
 
-import com.dropbox.core.v2.files.Metadata;
-
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Optional;
 
 /**
  * A file or folder that is synced to Dropbox.
@@ -18,18 +17,35 @@ import java.util.stream.Stream;
  * Contains two paths that reference...
  * a) a local file stored on a hard disk
  * b) a remote file stored on Dropbox's servers
+ *
+ * Locations are created by the {@link Root} they belong to.
+ * The attributes of the local file are read at most once, either when the
+ * location is found while walking a tree or when they are first needed, and
+ * are kept as a snapshot. A location describes the file as it was at that time,
+ * so a new location has to be created to see later changes.
  */
 public class Location {
 
-    private static Path localPathRoot;
-    private static Path remotePathRoot;
-
+    private final Root root;
     private final Path localPath;
     private final Path remotePath;
+    private volatile Optional<BasicFileAttributes> attributes;
 
-    private Location(Path localPath, Path remotePath) {
+    Location(Root root, Path localPath, Path remotePath, BasicFileAttributes... attributes) {
+        this.root = root;
         this.localPath = localPath;
         this.remotePath = remotePath;
+        if(attributes.length > 0) {
+            this.attributes = Optional.ofNullable(attributes[0]);
+        }
+    }
+
+    /**
+     * Get the root that the file or folder is synced under.
+     * @return the sync root.
+     */
+    public Root root() {
+        return root;
     }
 
     /**
@@ -40,23 +56,43 @@ public class Location {
         return local().toFile();
     }
 
+    /**
+     * Get the attributes of the local file, reading them if they were not read yet.
+     * @return the attributes of the file, or empty if the file does not exist.
+     */
+    public Optional<BasicFileAttributes> attributes() {
+        Optional<BasicFileAttributes> attributes = this.attributes;
+        if(attributes == null) {
+            try {
+                attributes = Optional.of(Files.readAttributes(localPath, BasicFileAttributes.class));
+            } catch(IOException e) {
+                attributes = Optional.empty();
+            }
+            this.attributes = attributes;
+        }
+        return attributes;
+    }
+
     /**
      * Check whether the file exists locally.
      * This may occur if the file has not yet been synced.
      * @return whether the file occurs locally.
      */
     public boolean exists() {
-        return file().exists();
+        return attributes().isPresent();
     }
 
     /**
      * Generate a hash of the current local file.
      * This can be used to compare against the remote
      * version to see if changes have been made.
+     *
+     * Hashes are served from the {@link HashIndex} unless the
+     * file has changed since it was last hashed.
      * @return the unique hash of the file.
      */
     public String hash() {
-        return exists() ? (new Hash()).hash(local()) : "";
+        return attributes().map(attributes -> root.hashes().hash(local(), attributes)).orElse("");
     }
 
     /**
@@ -64,7 +100,15 @@ public class Location {
      * @return time the file was modified.
      */
     public Instant modified() {
-        return Instant.ofEpochMilli(exists() ? file().lastModified() : 0);
+        return Instant.ofEpochMilli(attributes().map(attributes -> attributes.lastModifiedTime().toMillis()).orElse(0L));
+    }
+
+    /**
+     * Get the size of the file.
+     * @return the size of the file in bytes, or 0 if it does not exist.
+     */
+    public long size() {
+        return attributes().map(BasicFileAttributes::size).orElse(0L);
     }
 
     /**
@@ -96,7 +140,7 @@ public class Location {
      * @return whether the file is a directory.
      */
     public boolean directory() {
-        return file().isDirectory();
+        return attributes().map(BasicFileAttributes::isDirectory).orElse(false);
     }
 
     /**
@@ -105,18 +149,15 @@ public class Location {
      * @return sub-file of this file.
      */
     public List<Location> all() {
-        Stream<Location> stream;
         if(directory()) {
             try {
-                stream = Files.walk(local()).map(Location::fromLocal);
+                return root.walk(local());
             } catch(IOException e) {
                 e.printStackTrace();
-                stream = Stream.empty();
+                return Collections.emptyList();
             }
-        } else {
-            stream = Stream.of(this);
         }
-        return stream.collect(Collectors.toList());
+        return Collections.singletonList(this);
     }
 
     /**
@@ -135,6 +176,7 @@ public class Location {
     public boolean equals(Object obj) {
         return obj != null &&
                obj instanceof Location &&
+               root == ((Location) obj).root &&
                remote().equals(((Location) obj).remote());
     }
 
@@ -148,50 +190,4 @@ public class Location {
         return "Location{local=" + local() + ", remote=" + remote() + "}";
     }
 
-    /**
-     * Get the root location of where files are being stored locally.
-     * @return root location of local file storage.
-     */
-    public static Location root() {
-        return new Location(localPathRoot, remotePathRoot);
-    }
-
-    /**
-     * Get a combined local and remote location given just the local path.
-     * @param localPath path to a folder or directory locally.
-     * @return the combined local and remote location.
-     */
-    public static Location fromLocal(Path localPath) {
-        return new Location(localPath, Paths.get(remotePathRoot.toString() + localPath.toString().replaceAll(localPathRoot.toString(), "")));
-    }
-
-    /**
-     * Get a combined local and remote location given just the remote path.
-     * @param remotePath path to a folder or directory locally.
-     * @return the combined local and remote location.
-     */
-    public static Location fromRemote(Path remotePath) {
-        return new Location(Paths.get(localPathRoot.toString() + remotePath.toString().replaceAll(remotePathRoot.toString(), "")), remotePath);
-    }
-
-    /**
-     * Get the combined local and remote location given a Metadata
-     * object from the Dropbox API.
-     * @param metadata file metadata from Dropbox.
-     * @return the combined local and remote location.
-     */
-    public static Location fromMetadata(Metadata metadata) {
-        return fromRemote(Paths.get(metadata.getPathLower()));
-    }
-
-    /**
-     * Set the root relative location for both the local and remote files.
-     * @param localPathRoot root relative location.
-     * @param remotePathRoot root remote location.
-     */
-    public static void setRoot(Path localPathRoot, Path remotePathRoot) {
-        Location.localPathRoot = localPathRoot;
-        Location.remotePathRoot = remotePathRoot;
-    }
-
-}
\ No newline at end of file
+}
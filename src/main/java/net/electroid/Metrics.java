@@ -0,0 +1,228 @@
+package net.electroid;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A registry of metrics about the sync, such as how many bytes were transferred
+ * and how long requests to Dropbox take, served in the Prometheus text format.
+ *
+ * Metrics are grouped in families, each with a name, a help text and the names
+ * of its labels. Every combination of label values is a separate metric...
+ * a) counters only go up, such as bytes transferred
+ * b) gauges are read when served, such as the number of queued transfers
+ * c) histograms count observed values in buckets, such as request durations
+ */
+public final class Metrics {
+
+    private static final Map<String, Family<?>> families = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static HttpServer server;
+
+    private Metrics() {}
+
+    /**
+     * Get or create a family of counters.
+     * @param name the name of the family.
+     * @param help what the counters count.
+     * @param labels the names of the labels.
+     * @return the family of counters.
+     */
+    public static Family<LongAdder> counter(String name, String help, String... labels) {
+        return family(name, help, "counter", labels, values -> new LongAdder(), (counter, line) -> line.apply("", counter.sum()));
+    }
+
+    /**
+     * Get or create a family of gauges, whose values are read from suppliers.
+     * @param name the name of the family.
+     * @param help what the gauges measure.
+     * @param labels the names of the labels.
+     * @return the family of gauges.
+     */
+    public static Family<Supplier<? extends Number>> gauge(String name, String help, String... labels) {
+        return family(name, help, "gauge", labels, values -> () -> 0, (gauge, line) -> line.apply("", gauge.get()));
+    }
+
+    /**
+     * Get or create a family of histograms with the bounds in {@link Histogram#SECONDS}.
+     * @param name the name of the family.
+     * @param help what the histograms observe.
+     * @param labels the names of the labels.
+     * @return the family of histograms.
+     */
+    public static Family<Histogram> histogram(String name, String help, String... labels) {
+        return family(name, help, "histogram", labels, values -> new Histogram(), (histogram, line) -> {
+            double[] bounds = histogram.bounds();
+            long cumulative = 0;
+            for(int i = 0; i <= bounds.length; i++) {
+                cumulative += histogram.bucket(i);
+                String le = i < bounds.length ? format(bounds[i]) : "+Inf";
+                line.apply("_bucket", "le", le, cumulative);
+            }
+            line.apply("_sum", histogram.sum());
+            line.apply("_count", histogram.count());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Family<T> family(String name, String help, String type, String[] labels,
+                                        Function<List<String>, T> factory, Family.Writer<T> writer) {
+        return (Family<T>) families.computeIfAbsent(name, key -> new Family<>(name, help, type, labels, factory, writer));
+    }
+
+    /**
+     * Render all metrics in the Prometheus text format.
+     * @return the metrics as text.
+     */
+    public static String scrape() {
+        List<Family<?>> snapshot;
+        synchronized(families) {
+            snapshot = new ArrayList<>(families.values());
+        }
+        StringBuilder text = new StringBuilder();
+        for(Family<?> family : snapshot) {
+            family.write(text);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Serve the metrics at /metrics on a port, unless they are already served.
+     * @param port the port to listen on.
+     * @throws IOException when the port cannot be bound.
+     */
+    public static synchronized void serve(int port) throws IOException {
+        if(server != null) return;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.start();
+    }
+
+    private static String format(double value) {
+        if(value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A family of metrics with the same name, one for every combination of label values.
+     * @param <T> the type of each metric.
+     */
+    public static class Family<T> {
+
+        private final String name;
+        private final String help;
+        private final String type;
+        private final List<String> labels;
+        private final Function<List<String>, T> factory;
+        private final Writer<T> writer;
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labels,
+                       Function<List<String>, T> factory, Writer<T> writer) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labels = Arrays.asList(labels);
+            this.factory = factory;
+            this.writer = writer;
+        }
+
+        /**
+         * Get or create the metric for a combination of label values.
+         * @param values the value of each label, in order.
+         * @return the metric.
+         */
+        public T get(String... values) {
+            return children.computeIfAbsent(key(values), factory);
+        }
+
+        /**
+         * Set the metric for a combination of label values, replacing any previous one.
+         * @param metric the metric.
+         * @param values the value of each label, in order.
+         */
+        public void put(T metric, String... values) {
+            children.put(key(values), metric);
+        }
+
+        private List<String> key(String[] values) {
+            if(values.length != labels.size()) {
+                throw new IllegalArgumentException(name + " has labels " + labels + " but got " + Arrays.toString(values));
+            }
+            return Arrays.asList(values);
+        }
+
+        private void write(StringBuilder text) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for(Map.Entry<List<String>, T> child : children.entrySet()) {
+                writer.write(child.getValue(), (suffix, extra) -> {
+                    text.append(name).append(suffix);
+                    List<String> values = child.getKey();
+                    int pairs = labels.size() + (extra.length - 1) / 2;
+                    if(pairs > 0) {
+                        text.append('{');
+                        for(int i = 0; i < pairs; i++) {
+                            String label = i < labels.size() ? labels.get(i) : (String) extra[(i - labels.size()) * 2];
+                            String value = i < labels.size() ? values.get(i) : (String) extra[(i - labels.size()) * 2 + 1];
+                            if(i > 0) text.append(',');
+                            text.append(label).append("=\"").append(escape(value)).append('"');
+                        }
+                        text.append('}');
+                    }
+                    Object sample = extra[extra.length - 1];
+                    text.append(' ').append(sample instanceof Number ? format(((Number) sample).doubleValue()) : sample).append('\n');
+                });
+            }
+        }
+
+        /**
+         * Writes the samples of a metric.
+         * @param <T> the type of the metric.
+         */
+        interface Writer<T> {
+            void write(T metric, Line line);
+        }
+
+        /**
+         * Writes one sample, given the suffix of its name, any extra label names and values, and the sample.
+         */
+        interface Line {
+            void apply(String suffix, Object... extra);
+        }
+
+    }
+
+}
@@ -0,0 +1,165 @@
+package net.electroid;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.RelocationBatchJobStatus;
+import com.dropbox.core.v2.files.RelocationBatchLaunch;
+import com.dropbox.core.v2.files.RelocationBatchResult;
+import com.dropbox.core.v2.files.RelocationErrorException;
+import com.dropbox.core.v2.files.RelocationPath;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Collects remote files and folders to move and moves them on the server,
+ * so that renaming a folder locally does not upload everything in it again.
+ *
+ * Moves are made in the order they were added. Consecutive moves that do not
+ * touch each other's paths are made together in one batch job. Dropbox makes
+ * every move of a batch or none of them, so when a batch fails its moves are
+ * made one by one instead.
+ */
+public class MoveBatch {
+
+    public static final int MAX_ENTRIES = 1000;
+
+    private final DbxClientV2 client;
+    private final RemoteIndex remote;
+    private final Scheduler scheduler;
+    private final Map<Location, Location> pending = new LinkedHashMap<>();
+
+    public MoveBatch(DbxClientV2 client, RemoteIndex remote, Scheduler scheduler) {
+        this.client = client;
+        this.remote = remote;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add a file or folder to move.
+     * @param from the current location of the file or folder.
+     * @param to the location to move the file or folder to.
+     */
+    public void add(Location from, Location to) {
+        pending.put(from, to);
+    }
+
+    /**
+     * Move everything in the batch, blocking until the batch jobs are complete.
+     * @return the moves that failed, whose destination has to be uploaded instead.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check a batch job.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public Map<Location, Location> flush() throws IOException, DbxException, InterruptedException {
+        Map<Location, Location> failed = new LinkedHashMap<>();
+        List<Map.Entry<Location, Location>> chunk = new ArrayList<>();
+        Set<Path> paths = new HashSet<>();
+        for(Map.Entry<Location, Location> move : pending.entrySet()) {
+            Path from = move.getKey().remote(), to = move.getValue().remote();
+            if(chunk.size() >= MAX_ENTRIES || touches(from, paths) || touches(to, paths)) {
+                move(chunk, failed);
+                chunk.clear();
+                paths.clear();
+            }
+            chunk.add(move);
+            paths.add(from);
+            paths.add(to);
+        }
+        move(chunk, failed);
+        pending.clear();
+        return failed;
+    }
+
+    /**
+     * Move a chunk of files and folders that do not touch each other's paths.
+     * @param chunk the moves to make.
+     * @param failed the moves that failed, to add to.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check a batch job.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    private void move(List<Map.Entry<Location, Location>> chunk, Map<Location, Location> failed) throws IOException, DbxException, InterruptedException {
+        if(chunk.isEmpty()) return;
+        if(chunk.size() > 1) {
+            List<RelocationPath> args = new ArrayList<>();
+            for(Map.Entry<Location, Location> move : chunk) {
+                args.add(new RelocationPath(move.getKey().remote().toString(), move.getValue().remote().toString()));
+            }
+            Optional<RelocationBatchResult> result = move(args);
+            if(result.isPresent()) {
+                for(int i = 0; i < chunk.size(); i++) {
+                    moved(chunk.get(i).getKey(), chunk.get(i).getValue(), result.get().getEntries().get(i).getMetadata());
+                }
+                return;
+            }
+        }
+        for(Map.Entry<Location, Location> move : chunk) {
+            Location from = move.getKey(), to = move.getValue();
+            try {
+                Metadata metadata = scheduler.write("files/move_v2", () -> client.files()
+                    .moveV2(from.remote().toString(), to.remote().toString())
+                    .getMetadata());
+                moved(from, to, metadata);
+            } catch(RelocationErrorException e) {
+                System.err.println("Unable to move " + from.remote() + " to " + to.remote() + ": " + e.errorValue);
+                failed.put(from, to);
+            }
+        }
+    }
+
+    /**
+     * Start a move batch job and poll it until it is complete.
+     * @param args the paths to move from and to.
+     * @return the result for each move, in order, or empty if the batch failed and nothing was moved.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check the batch job.
+     * @throws InterruptedException when the currently blocking thread cannot sleep.
+     */
+    private Optional<RelocationBatchResult> move(List<RelocationPath> args) throws IOException, DbxException, InterruptedException {
+        RelocationBatchLaunch launch = scheduler.write("files/move_batch", () -> client.files().moveBatch(args));
+        if(launch.isComplete()) {
+            return Optional.of(launch.getCompleteValue());
+        } else if(!launch.isAsyncJobId()) {
+            throw new DbxException("Unexpected move batch launch " + launch);
+        }
+        return Jobs.await(() -> {
+            RelocationBatchJobStatus status = scheduler.read("files/move_batch/check", () -> client.files().moveBatchCheck(launch.getAsyncJobIdValue()));
+            if(status.isFailed()) {
+                return Optional.of(Optional.empty());
+            }
+            return status.isComplete() ? Optional.of(Optional.of(status.getCompleteValue())) : Optional.empty();
+        });
+    }
+
+    /**
+     * Update the indexes after a file or folder was moved.
+     * @param from the previous location.
+     * @param to the new location.
+     * @param metadata the metadata of the file or folder after the move.
+     */
+    private void moved(Location from, Location to, Metadata metadata) {
+        remote.move(from, to);
+        remote.put(metadata);
+        from.root().hashes().move(from.local(), to.local());
+    }
+
+    private static boolean touches(Path path, Set<Path> paths) {
+        for(Path parent = path; parent != null; parent = parent.getParent()) {
+            if(paths.contains(parent)) return true;
+        }
+        for(Path other : paths) {
+            if(other.startsWith(path)) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,116 @@
+package net.electroid;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The priority of a transfer, expressed as how long it is held back
+ * behind transfers that were queued at the same time.
+ *
+ * Transfers are started in order of when they were queued plus their delay,
+ * so a transfer with a long delay still starts once it has waited that long,
+ * and is never starved by a steady stream of short ones.
+ *
+ * The delay of a file is made up of...
+ * a) one second for every doubling of its size in kilobytes (1 KB = 1s, 1 GB = 20s)
+ * b) a quarter of a second for every doubling of the seconds since it was modified
+ * c) minus DROPBOX_PRIORITY_BOOST_SECONDS (default 60) when its path, relative to the
+ *    sync root, starts with one of the comma-separated DROPBOX_PRIORITY_PATHS
+ */
+public final class Priority {
+
+    public static final String BOOSTED = "boosted";
+    public static final String SMALL = "small";
+    public static final String MEDIUM = "medium";
+    public static final String LARGE = "large";
+    public static final String DEFAULT = "default";
+    public static final List<String> CLASSES = Arrays.asList(BOOSTED, SMALL, MEDIUM, LARGE, DEFAULT);
+
+    /**
+     * The priority of transfers that are not files, which are not held back.
+     */
+    public static final Priority NONE = new Priority(null, DEFAULT, 0);
+
+    private static final long SMALL_SIZE = 1024 * 1024;
+    private static final long MEDIUM_SIZE = 64 * 1024 * 1024;
+    private static final long BOOST = Duration.ofSeconds(Config.integer("DROPBOX_PRIORITY_BOOST_SECONDS", 60)).toMillis();
+    private static final List<Path> BOOSTS = Config.list("DROPBOX_PRIORITY_PATHS").stream()
+        .map(Paths::get)
+        .collect(Collectors.toList());
+
+    private final Root root;
+    private final String name;
+    private final long delay;
+
+    private Priority(Root root, String name, long delay) {
+        this.root = root;
+        this.name = name;
+        this.delay = delay;
+    }
+
+    /**
+     * Get the priority of transferring a file.
+     * @param location the location of the file.
+     * @param size the size of the file in bytes.
+     * @param modified when the file was last modified.
+     * @return the priority of the transfer.
+     */
+    public static Priority of(Location location, long size, Instant modified) {
+        long age = Math.max(0, Duration.between(modified, Instant.now()).getSeconds());
+        long delay = Math.round(1000 * log2(1 + size / 1024.0) + 250 * log2(1 + age));
+        if(boosted(location)) {
+            return new Priority(location.root(), BOOSTED, delay - BOOST);
+        } else if(size <= SMALL_SIZE) {
+            return new Priority(location.root(), SMALL, delay);
+        } else if(size <= MEDIUM_SIZE) {
+            return new Priority(location.root(), MEDIUM, delay);
+        } else {
+            return new Priority(location.root(), LARGE, delay);
+        }
+    }
+
+    /**
+     * Get the root of the transferred file, which takes turns with other roots.
+     * @return the root, or null if the transfer is not of a file.
+     */
+    public Root root() {
+        return root;
+    }
+
+    /**
+     * Get the name of the class of the priority, one of {@link #CLASSES}.
+     * @return the name of the class.
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Get how long the transfer is held back behind transfers queued at the same time.
+     * @return the delay in milliseconds, negative if it goes ahead of them.
+     */
+    public long delay() {
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return name + "+" + delay + "ms";
+    }
+
+    private static boolean boosted(Location location) {
+        if(BOOSTS.isEmpty()) return false;
+        Path relative = location.root().location().local().relativize(location.local());
+        return BOOSTS.stream().anyMatch(relative::startsWith);
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+}
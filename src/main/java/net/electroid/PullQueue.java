@@ -0,0 +1,224 @@
+package net.electroid;
+
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.Metadata;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A queue of remote changes between listing them and applying them locally,
+ * which keeps only the latest change of every path.
+ *
+ * Changes are added a page at a time, in the order they were listed. A change
+ * replaces any change of the same path that is still waiting, and a deleted
+ * folder replaces every waiting change below it, so a file that changes many
+ * times while it waits is only applied once.
+ *
+ * Every page ends with a cursor. Once every change of a page and of the pages
+ * before it was either applied or replaced, the cursor is committed, so that
+ * listing can continue from it without missing a change.
+ */
+public class PullQueue {
+
+    private static final LongAdder COALESCED = Metrics.counter("dropbox_sync_pull_coalesced_total", "Remote changes replaced by a later change of the same path before they were applied.").get();
+
+    private final int capacity;
+    private final Consumer<String> commit;
+    private final Map<String, Item> pending = new LinkedHashMap<>();
+    private final NavigableSet<String> paths = new TreeSet<>();
+    private final Deque<Page> pages = new ArrayDeque<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * Create a queue of remote changes.
+     * @param capacity how many changes can wait before adding more blocks.
+     * @param commit called with the cursor of a page once the page and every page before it are applied.
+     */
+    public PullQueue(int capacity, Consumer<String> commit) {
+        this.capacity = Math.max(1, capacity);
+        this.commit = commit;
+    }
+
+    /**
+     * Add a page of changes, blocking while the queue is full.
+     * @param entries the file, folder and deleted metadata of the page, in order.
+     * @param cursor the cursor at the end of the page.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public void add(List<Metadata> entries, String cursor) throws InterruptedException {
+        lock.lock();
+        try {
+            while(pending.size() >= capacity) {
+                changed.await();
+            }
+            Page page = new Page(cursor);
+            pages.addLast(page);
+            for(Metadata metadata : entries) {
+                String key = metadata.getPathLower();
+                replace(key);
+                if(metadata instanceof DeletedMetadata) {
+                    String prefix = key + "/";
+                    Iterator<String> below = paths.subSet(prefix, true, prefix + Character.MAX_VALUE, false).iterator();
+                    while(below.hasNext()) {
+                        String child = below.next();
+                        below.remove();
+                        replaced(pending.remove(child));
+                    }
+                }
+                page.outstanding++;
+                pending.put(key, new Item(metadata, page));
+                paths.add(key);
+            }
+            advance();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the oldest change, blocking until there is one.
+     * @return the change, which has to be marked as {@link #done(Item)} once it is applied.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public Item take() throws InterruptedException {
+        lock.lock();
+        try {
+            while(pending.isEmpty()) {
+                changed.await();
+            }
+            Iterator<Item> iterator = pending.values().iterator();
+            Item item = iterator.next();
+            iterator.remove();
+            paths.remove(item.metadata.getPathLower());
+            changed.signalAll();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put a change that was taken back into the queue, such as when the same path
+     * is still being applied. It is dropped if a later change of the path is waiting.
+     * @param item the change that was taken.
+     */
+    public void retry(Item item) {
+        lock.lock();
+        try {
+            String key = item.metadata.getPathLower();
+            if(pending.containsKey(key)) {
+                replaced(item);
+            } else {
+                pending.put(key, item);
+                paths.add(key);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark a change that was taken as applied.
+     * @param item the change that was taken.
+     */
+    public void done(Item item) {
+        lock.lock();
+        try {
+            item.page.outstanding--;
+            advance();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get how many changes are waiting.
+     * @return the number of waiting changes.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void replace(String key) {
+        if(paths.remove(key)) {
+            replaced(pending.remove(key));
+        }
+    }
+
+    private void replaced(Item item) {
+        if(item == null) return;
+        COALESCED.increment();
+        item.page.outstanding--;
+    }
+
+    /**
+     * Commit the cursor of the last page that is applied along with every page before it.
+     */
+    private void advance() {
+        String cursor = null;
+        while(!pages.isEmpty() && pages.peekFirst().outstanding == 0) {
+            cursor = pages.removeFirst().cursor;
+        }
+        if(cursor != null) {
+            commit.accept(cursor);
+        }
+    }
+
+    /**
+     * A remote change waiting to be applied.
+     */
+    public static class Item {
+
+        private final Metadata metadata;
+        private final Page page;
+
+        private Item(Metadata metadata, Page page) {
+            this.metadata = metadata;
+            this.page = page;
+        }
+
+        /**
+         * Get the metadata of the change.
+         * @return file, folder or deleted metadata from Dropbox.
+         */
+        public Metadata metadata() {
+            return metadata;
+        }
+
+    }
+
+    /**
+     * A page of changes and how many of them are not applied or replaced yet.
+     */
+    private static class Page {
+
+        private final String cursor;
+        private int outstanding;
+
+        private Page(String cursor) {
+            this.cursor = cursor;
+        }
+
+    }
+
+}
@@ -0,0 +1,291 @@
+package net.electroid;
+
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory mirror of the metadata of remote files and folders.
+ *
+ * Entries are keyed by their lower-cased remote path. The mirror is seeded
+ * from a recursive listing of the remote root and then kept current from the
+ * pages of changes that are listed afterwards, so that looking up the metadata
+ * of a file does not need a request to Dropbox.
+ *
+ * Files are also indexed by their content hash, so that content which already
+ * exists remotely can be found without uploading it again.
+ */
+public class RemoteIndex {
+
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<String>> contents = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile boolean seeded = false;
+
+    /**
+     * Apply a metadata object from a listing of the remote files.
+     * Deleted metadata removes the entry and everything below it.
+     * @param metadata file, folder or deleted metadata from Dropbox.
+     */
+    public void put(Metadata metadata) {
+        String key = metadata.getPathLower();
+        if(metadata instanceof DeletedMetadata) {
+            remove(key);
+        } else {
+            Entry.of(metadata).ifPresent(entry -> put(key, entry));
+        }
+    }
+
+    /**
+     * Remove the entry of a location and everything below it.
+     * @param location the location of the file or folder.
+     */
+    public void remove(Location location) {
+        remove(key(location));
+    }
+
+    /**
+     * Move the entry of a location and everything below it to another location,
+     * after it was moved remotely.
+     * @param from the previous location of the file or folder.
+     * @param to the new location of the file or folder.
+     */
+    public void move(Location from, Location to) {
+        String source = key(from), target = key(to);
+        if(source.equals(target)) return;
+        Entry entry = entries.get(source);
+        String prefix = source + "/";
+        Map<String, Entry> below = new TreeMap<>(entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false));
+        remove(source);
+        if(entry != null) {
+            put(target, entry);
+        }
+        for(Map.Entry<String, Entry> child : below.entrySet()) {
+            put(target + child.getKey().substring(source.length()), child.getValue());
+        }
+    }
+
+    /**
+     * Get the entry of a location.
+     * @param location the location of the file or folder.
+     * @return the entry, or empty if nothing is known at the location.
+     */
+    public Optional<Entry> get(Location location) {
+        return Optional.ofNullable(entries.get(key(location)));
+    }
+
+    /**
+     * Find a remote file with some content.
+     * @param hash the Dropbox content hash of the content.
+     * @return the lower-cased remote path of a file with the content, or empty if there is none.
+     */
+    public Optional<String> find(String hash) {
+        if(hash == null || hash.isEmpty()) return Optional.empty();
+        Set<String> paths = contents.get(hash.toLowerCase(Locale.ROOT));
+        return paths == null ? Optional.empty() : paths.stream().findFirst();
+    }
+
+    /**
+     * Whether the mirror holds a complete listing of the remote root,
+     * in which case a missing entry means the file does not exist remotely.
+     * @return whether the mirror has been seeded.
+     */
+    public boolean seeded() {
+        return seeded;
+    }
+
+    /**
+     * Mark that a complete listing of the remote root has been applied.
+     */
+    public void seed() {
+        this.seeded = true;
+        version.incrementAndGet();
+    }
+
+    /**
+     * Get a number that changes whenever the mirror changes, so it can be saved only when it did.
+     * @return the version of the mirror.
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Get how many files and folders are mirrored.
+     * @return number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write every entry of the mirror.
+     * @param output the stream to write to.
+     * @throws IOException when the stream cannot be written to.
+     */
+    public void write(DataOutputStream output) throws IOException {
+        Map<String, Entry> copy = new TreeMap<>(entries);
+        output.writeInt(copy.size());
+        for(Map.Entry<String, Entry> entry : copy.entrySet()) {
+            output.writeUTF(entry.getKey());
+            entry.getValue().write(output);
+        }
+    }
+
+    /**
+     * Read a mirror that was written with {@link #write(DataOutputStream)}.
+     * The mirror is considered seeded.
+     * @param input the stream to read from.
+     * @return the seeded mirror.
+     * @throws IOException when the stream cannot be read from.
+     */
+    public static RemoteIndex read(DataInputStream input) throws IOException {
+        RemoteIndex index = new RemoteIndex();
+        int size = input.readInt();
+        for(int i = 0; i < size; i++) {
+            index.put(input.readUTF(), Entry.read(input));
+        }
+        index.seed();
+        return index;
+    }
+
+    private void put(String key, Entry entry) {
+        version.incrementAndGet();
+        Entry previous = entries.put(key, entry);
+        unindex(key, previous);
+        if(!entry.folder() && entry.hash() != null) {
+            contents.computeIfAbsent(entry.hash().toLowerCase(Locale.ROOT), hash -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    private void remove(String key) {
+        version.incrementAndGet();
+        unindex(key, entries.remove(key));
+        String prefix = key + "/";
+        Map<String, Entry> below = entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        for(Map.Entry<String, Entry> entry : below.entrySet()) {
+            unindex(entry.getKey(), entry.getValue());
+        }
+        below.clear();
+    }
+
+    private void unindex(String key, Entry entry) {
+        if(entry == null || entry.folder() || entry.hash() == null) return;
+        contents.computeIfPresent(entry.hash().toLowerCase(Locale.ROOT), (hash, paths) -> {
+            paths.remove(key);
+            return paths.isEmpty() ? null : paths;
+        });
+    }
+
+    static String key(Location location) {
+        return location.remote().toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The mirrored metadata of a remote file or folder.
+     */
+    public static class Entry {
+
+        private final boolean folder;
+        private final String hash;
+        private final long size;
+        private final long modified;
+        private final String rev;
+
+        private Entry(boolean folder, String hash, long size, long modified, String rev) {
+            this.folder = folder;
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.rev = rev;
+        }
+
+        /**
+         * Create an entry from the metadata of a file or folder.
+         * @param metadata file or folder metadata from Dropbox.
+         * @return the entry, or empty for any other metadata.
+         */
+        static Optional<Entry> of(Metadata metadata) {
+            if(metadata instanceof FileMetadata) {
+                FileMetadata file = (FileMetadata) metadata;
+                return Optional.of(new Entry(false, file.getContentHash(), file.getSize(), file.getClientModified().getTime(), file.getRev()));
+            } else if(metadata instanceof FolderMetadata) {
+                return Optional.of(new Entry(true, null, 0, 0, null));
+            }
+            return Optional.empty();
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeBoolean(folder);
+            if(!folder) {
+                output.writeUTF(hash);
+                output.writeLong(size);
+                output.writeLong(modified);
+                output.writeUTF(rev);
+            }
+        }
+
+        private static Entry read(DataInputStream input) throws IOException {
+            if(input.readBoolean()) {
+                return new Entry(true, null, 0, 0, null);
+            }
+            return new Entry(false, input.readUTF(), input.readLong(), input.readLong(), input.readUTF());
+        }
+
+        /**
+         * Whether the entry is a folder.
+         * @return whether the entry is a folder.
+         */
+        public boolean folder() {
+            return folder;
+        }
+
+        /**
+         * Get the Dropbox content hash of the file.
+         * @return the content hash, or null for folders.
+         */
+        public String hash() {
+            return hash;
+        }
+
+        /**
+         * Get the size of the file in bytes.
+         * @return the size of the file.
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Get when the file was last modified by the client that uploaded it.
+         * @return the client modified time.
+         */
+        public Instant modified() {
+            return Instant.ofEpochMilli(modified);
+        }
+
+        /**
+         * Get the revision of the file.
+         * @return the revision, or null for folders.
+         */
+        public String rev() {
+            return rev;
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package net.electroid;
+
+import com.dropbox.core.v2.files.Metadata;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A pair of a local folder and a remote Dropbox folder that are synced with each other.
+ *
+ * Every {@link Location} belongs to a root, which maps its path between the local
+ * and the remote folder. A process can sync many roots at the same time, each with
+ * its own hash index stored under its local folder.
+ */
+public final class Root {
+
+    private final Path localPathRoot;
+    private final Path remotePathRoot;
+    private final Path remotePathBase;
+    private final Path remotePathBaseLower;
+    private final HashIndex hashIndex;
+
+    /**
+     * Create a root and load the hash index stored under its local folder.
+     * @param localPathRoot the absolute path of the local folder.
+     * @param remotePathRoot the absolute path of the remote folder, or "" for the whole Dropbox.
+     */
+    public Root(Path localPathRoot, Path remotePathRoot) {
+        this.localPathRoot = localPathRoot;
+        this.remotePathRoot = remotePathRoot;
+        // Dropbox refers to its root as "", but to everything below it with a leading slash
+        this.remotePathBase = remotePathRoot.toString().isEmpty() ? remotePathRoot.getFileSystem().getPath("/") : remotePathRoot;
+        this.remotePathBaseLower = remotePathBase.getFileSystem().getPath(remotePathBase.toString().toLowerCase(Locale.ROOT));
+        this.hashIndex = HashIndex.load(localPathRoot);
+    }
+
+    /**
+     * Get the location of the root folder itself.
+     * @return the root location.
+     */
+    public Location location() {
+        return new Location(this, localPathRoot, remotePathRoot);
+    }
+
+    /**
+     * Get the index of content hashes for files under the local folder.
+     * @return the hash index.
+     */
+    public HashIndex hashes() {
+        return hashIndex;
+    }
+
+    /**
+     * Get a combined local and remote location given just the local path.
+     * @param localPath path to a folder or directory locally.
+     * @return the combined local and remote location.
+     */
+    public Location fromLocal(Path localPath) {
+        return new Location(this, localPath, toRemote(localPath));
+    }
+
+    /**
+     * Get a combined local and remote location given the local path
+     * and the attributes of the local file that were already read.
+     * @param localPath path to a folder or directory locally.
+     * @param attributes the attributes of the local file.
+     * @return the combined local and remote location.
+     */
+    public Location fromLocal(Path localPath, BasicFileAttributes attributes) {
+        return new Location(this, localPath, toRemote(localPath), attributes);
+    }
+
+    /**
+     * Get a combined local and remote location given just the remote path.
+     * The remote root is matched regardless of case, since Dropbox reports lower-case paths.
+     * @param remotePath path to a folder or directory locally.
+     * @return the combined local and remote location.
+     */
+    public Location fromRemote(Path remotePath) {
+        Path relative;
+        if(remotePath.startsWith(remotePathBase)) {
+            relative = remotePathBase.relativize(remotePath);
+        } else if(remotePath.startsWith(remotePathBaseLower)) {
+            relative = remotePathBaseLower.relativize(remotePath);
+        } else {
+            relative = remotePath.getRoot() == null ? remotePath : remotePath.getRoot().relativize(remotePath);
+        }
+        return new Location(this, localPathRoot.resolve(relative), remotePath);
+    }
+
+    /**
+     * Get the combined local and remote location given a Metadata
+     * object from the Dropbox API.
+     * @param metadata file metadata from Dropbox.
+     * @return the combined local and remote location.
+     */
+    public Location fromMetadata(Metadata metadata) {
+        return fromRemote(Paths.get(metadata.getPathLower()));
+    }
+
+    /**
+     * Walk a local tree and get the location of every file and folder in it,
+     * including the root of the tree, reading the attributes of each file only once.
+     * Files that disappear while walking are left out.
+     * @param root the local root of the tree.
+     * @return the locations in the tree.
+     * @throws IOException when the root of the tree cannot be read.
+     */
+    public List<Location> walk(Path root) throws IOException {
+        List<Location> locations = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                locations.add(fromLocal(dir, attributes));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                locations.add(fromLocal(file, attributes));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if(file.equals(root)) throw e;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return locations;
+    }
+
+    private Path toRemote(Path localPath) {
+        if(localPath.equals(localPathRoot)) {
+            return remotePathRoot;
+        }
+        return remotePathBase.resolve(localPathRoot.relativize(localPath));
+    }
+
+    @Override
+    public String toString() {
+        return "Root{local=" + localPathRoot + ", remote=" + remotePathRoot + "}";
+    }
+
+}
@@ -0,0 +1,312 @@
+package net.electroid;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.RetryException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Schedules every request to Dropbox, so that syncing runs as fast
+ * as Dropbox allows without being throttled.
+ *
+ * Requests are split into two lanes, reads and writes, which are throttled separately...
+ * a) a token bucket limits how many requests start per second
+ * b) a concurrency limit is raised slowly while requests succeed,
+ *    and halved when Dropbox responds with a rate limit (AIMD)
+ * c) a rate limit pauses the whole lane for as long as Dropbox asks
+ *
+ * Rate limited requests are retried until they succeed. Requests that fail
+ * because of the network or a temporary server error are retried with
+ * jittered exponential backoff, up to DROPBOX_RETRIES times (default 5).
+ *
+ * Every attempt is timed in {@link Metrics} by the name of its Dropbox route.
+ */
+public class Scheduler {
+
+    private static final long BACKOFF_MIN = 500;
+    private static final long BACKOFF_MAX = 30000;
+    private static final Metrics.Family<Histogram> LATENCY = Metrics.histogram("dropbox_sync_request_seconds", "Duration of requests to Dropbox.", "route");
+    private static final Metrics.Family<LongAdder> ERRORS = Metrics.counter("dropbox_sync_request_errors_total", "Requests to Dropbox that failed.", "route", "error");
+    private static final Metrics.Family<LongAdder> RATE_LIMITS = Metrics.counter("dropbox_sync_rate_limits_total", "Requests to Dropbox that were rate limited.", "lane");
+    private static final Metrics.Family<Supplier<? extends Number>> ACTIVE = Metrics.gauge("dropbox_sync_requests_active", "Requests to Dropbox that are running.", "lane");
+    private static final Metrics.Family<Supplier<? extends Number>> LIMIT = Metrics.gauge("dropbox_sync_requests_limit", "How many requests to Dropbox can run at the same time.", "lane");
+
+    private final Lane read;
+    private final Lane write;
+    private final int retries;
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * Create a scheduler.
+     * @param readRate how many reads can start per second.
+     * @param readConcurrency how many reads can run at the same time.
+     * @param writeRate how many writes can start per second.
+     * @param writeConcurrency how many writes can run at the same time.
+     * @param retries how many times a failed request is attempted.
+     */
+    public Scheduler(int readRate, int readConcurrency, int writeRate, int writeConcurrency, int retries) {
+        this.read = new Lane("read", readRate, readConcurrency);
+        this.write = new Lane("write", writeRate, writeConcurrency);
+        this.retries = Math.max(1, retries);
+        for(Lane lane : new Lane[] {read, write}) {
+            ACTIVE.put(lane::active, lane.name);
+            LIMIT.put(lane::limit, lane.name);
+        }
+    }
+
+    /**
+     * Create a scheduler with...
+     * a) DROPBOX_READ_RATE reads per second (default 50)
+     * b) DROPBOX_READ_CONCURRENCY concurrent reads (default 16)
+     * c) DROPBOX_WRITE_RATE writes per second (default 20)
+     * d) DROPBOX_WRITE_CONCURRENCY concurrent writes (default 8)
+     * e) DROPBOX_RETRIES attempts per request (default 5)
+     */
+    public Scheduler() {
+        this(Config.integer("DROPBOX_READ_RATE", 50),
+             Config.integer("DROPBOX_READ_CONCURRENCY", 16),
+             Config.integer("DROPBOX_WRITE_RATE", 20),
+             Config.integer("DROPBOX_WRITE_CONCURRENCY", 8),
+             Config.integer("DROPBOX_RETRIES", 5));
+    }
+
+    /**
+     * Run a request that only reads from Dropbox, such as listing or downloading files.
+     * @param route the name of the Dropbox route, such as files/download.
+     * @param request the request to run.
+     * @param <T> the result of the request.
+     * @return the result of the request.
+     * @throws IOException when the request fails or the thread is interrupted while waiting.
+     * @throws DbxException when the request fails or runs out of retries.
+     */
+    public <T> T read(String route, Request<T> request) throws IOException, DbxException {
+        return run(read, route, request);
+    }
+
+    /**
+     * Run a request that writes to Dropbox, such as uploading or deleting files.
+     * @param route the name of the Dropbox route, such as files/download.
+     * @param request the request to run.
+     * @param <T> the result of the request.
+     * @return the result of the request.
+     * @throws IOException when the request fails or the thread is interrupted while waiting.
+     * @throws DbxException when the request fails or runs out of retries.
+     */
+    public <T> T write(String route, Request<T> request) throws IOException, DbxException {
+        return run(write, route, request);
+    }
+
+    /**
+     * Run a request that is not throttled, such as a longpoll that mostly waits,
+     * but is still retried when the network fails or Dropbox asks to try again later.
+     * @param route the name of the Dropbox route, such as files/download.
+     * @param request the request to run.
+     * @param <T> the result of the request.
+     * @return the result of the request.
+     * @throws IOException when the request fails or the thread is interrupted while backing off.
+     * @throws DbxException when the request fails or runs out of retries.
+     */
+    public <T> T retry(String route, Request<T> request) throws IOException, DbxException {
+        return run(null, route, request);
+    }
+
+    /**
+     * Get how many times Dropbox responded with a rate limit.
+     * @return the number of rate limited requests.
+     */
+    public long throttled() {
+        return throttled.get();
+    }
+
+    /**
+     * Get how many times a request was retried, including rate limited requests.
+     * @return the number of retries.
+     */
+    public long retried() {
+        return retried.get();
+    }
+
+    /**
+     * Run a request in a lane, retrying it until it succeeds or runs out of retries.
+     * The request must be safe to repeat from the start.
+     * @param lane the lane to throttle the request in, or null to not throttle it.
+     * @param route the name of the Dropbox route.
+     * @param request the request to run.
+     * @param <T> the result of the request.
+     * @return the result of the request.
+     * @throws IOException when the request fails or the thread is interrupted while waiting.
+     * @throws DbxException when the request fails or runs out of retries.
+     */
+    private <T> T run(Lane lane, String route, Request<T> request) throws IOException, DbxException {
+        Histogram latency = LATENCY.get(route);
+        int attempt = 0;
+        while(true) {
+            try {
+                if(lane != null) lane.acquire();
+            } catch(InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+            long wait;
+            long start = System.nanoTime();
+            try {
+                T result = request.execute();
+                if(lane != null) lane.release(0);
+                return result;
+            } catch(RateLimitException e) {
+                ERRORS.get(route, e.getClass().getSimpleName()).increment();
+                RATE_LIMITS.get(lane != null ? lane.name : "none").increment();
+                throttled.incrementAndGet();
+                wait = Math.max(e.getBackoffMillis(), BACKOFF_MIN);
+                if(lane != null) lane.release(wait);
+                wait += ThreadLocalRandom.current().nextLong(wait / 4 + 1);
+            } catch(NetworkIOException | RetryException e) {
+                ERRORS.get(route, e.getClass().getSimpleName()).increment();
+                if(lane != null) lane.release(0);
+                if(++attempt >= retries) throw e;
+                long backoff = e instanceof RetryException ? ((RetryException) e).getBackoffMillis() : 0;
+                wait = Math.max(backoff, ThreadLocalRandom.current().nextLong(Math.min(BACKOFF_MAX, BACKOFF_MIN << attempt) + 1));
+            } catch(IOException | DbxException | RuntimeException e) {
+                ERRORS.get(route, e.getClass().getSimpleName()).increment();
+                if(lane != null) lane.release(0);
+                throw e;
+            } finally {
+                latency.observe((System.nanoTime() - start) / 1e9);
+            }
+            retried.incrementAndGet();
+            try {
+                Thread.sleep(wait);
+            } catch(InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "read " + read + ", write " + write + ", " + throttled() + " throttled, " + retried() + " retried";
+    }
+
+    /**
+     * A token bucket and an adaptive concurrency limit for one kind of request.
+     */
+    private static class Lane {
+
+        private final String name;
+        private final double rate;
+        private final int concurrency;
+        private final Lock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private double tokens;
+        private double limit;
+        private int active;
+        private long refilled = System.nanoTime();
+        private long paused = refilled;
+
+        private Lane(String name, int rate, int concurrency) {
+            this.name = name;
+            this.rate = Math.max(1, rate);
+            this.concurrency = Math.max(1, concurrency);
+            this.tokens = this.rate;
+            this.limit = this.concurrency;
+        }
+
+        /**
+         * Block until the lane is not paused, below its concurrency limit, and has a token.
+         * Waits on a lock rather than a monitor, so that waiting virtual threads do not pin their carrier.
+         * @throws InterruptedException when the currently blocking thread is interrupted.
+         */
+        private void acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                while(true) {
+                    long now = System.nanoTime();
+                    tokens = Math.min(rate, tokens + (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+                    refilled = now;
+                    if(paused - now > 0) {
+                        changed.awaitNanos(paused - now);
+                    } else if(active >= (int) limit) {
+                        changed.await();
+                    } else if(tokens < 1) {
+                        changed.awaitNanos(Math.max(1, (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate)));
+                    } else {
+                        tokens--;
+                        active++;
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Release a finished request and adapt the concurrency limit.
+         * Only the first rate limit while the lane is running halves the limit,
+         * since every request that was already running is likely to be limited too.
+         * @param backoff how many milliseconds Dropbox asked to wait, or 0 if not rate limited.
+         */
+        private void release(long backoff) {
+            lock.lock();
+            try {
+                active--;
+                long now = System.nanoTime();
+                if(backoff > 0) {
+                    if(paused - now <= 0) {
+                        limit = Math.max(1, limit / 2);
+                    }
+                    paused = Math.max(paused - now, TimeUnit.MILLISECONDS.toNanos(backoff)) + now;
+                } else {
+                    limit = Math.min(concurrency, limit + 1 / limit);
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int active() {
+            lock.lock();
+            try {
+                return active;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int limit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return active() + "/" + limit();
+        }
+
+    }
+
+    /**
+     * A single request to Dropbox.
+     * @param <T> the result of the request.
+     */
+    interface Request<T> {
+        T execute() throws IOException, DbxException;
+    }
+
+}
@@ -0,0 +1,100 @@
+package net.electroid;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * The attributes of a local file or folder that push remembers in its snapshot.
+ *
+ * Besides the modified time, which tells whether the file changed, the snapshot
+ * keeps the size and file key (inode) of the file, so that a file that disappeared
+ * can be recognized when it appears again under another path.
+ */
+public final class Stat {
+
+    private final long modified;
+    private final long size;
+    private final String fileKey;
+    private final boolean directory;
+
+    /**
+     * Create the attributes of a file or folder.
+     * @param modified when the file was last modified, in milliseconds since the epoch.
+     * @param size the size of the file in bytes.
+     * @param fileKey the file key of the file, or null if the file system has none.
+     * @param directory whether it is a folder.
+     */
+    public Stat(long modified, long size, String fileKey, boolean directory) {
+        this.modified = modified;
+        this.size = size;
+        this.fileKey = fileKey;
+        this.directory = directory;
+    }
+
+    /**
+     * Get the attributes of a file or folder that were read from the disk.
+     * @param attributes the attributes of the file or folder.
+     * @return the attributes to remember.
+     */
+    public static Stat of(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return new Stat(attributes.lastModifiedTime().toMillis(),
+                        attributes.isDirectory() ? 0 : attributes.size(),
+                        fileKey == null ? null : fileKey.toString(),
+                        attributes.isDirectory());
+    }
+
+    /**
+     * Get when the file was last modified.
+     * @return the modified time in milliseconds since the epoch.
+     */
+    public long modified() {
+        return modified;
+    }
+
+    /**
+     * Get the size of the file.
+     * @return the size in bytes, or 0 for folders.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the file key, which stays the same when the file is renamed or moved
+     * within the same file system.
+     * @return the file key, or null if the file system has none.
+     */
+    public String fileKey() {
+        return fileKey;
+    }
+
+    /**
+     * Whether it is a folder.
+     * @return whether it is a folder.
+     */
+    public boolean directory() {
+        return directory;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(!(obj instanceof Stat)) return false;
+        Stat other = (Stat) obj;
+        return modified == other.modified &&
+               size == other.size &&
+               directory == other.directory &&
+               Objects.equals(fileKey, other.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(modified, size, fileKey, directory);
+    }
+
+    @Override
+    public String toString() {
+        return (directory ? "folder" : size + " bytes") + " modified " + modified + (fileKey != null ? " key " + fileKey : "");
+    }
+
+}
@@ -1,8 +1,12 @@
 package net.electroid;
 
+import java.io.IOException;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Main class of the application to sync
@@ -15,38 +19,124 @@ import java.util.List;
  *
  * Highly recommended to run as a "sidecar" in a Kubernetes
  * environment to sync changes to a volume from Dropbox and back.
+ * One process can sync many roots, possibly of different accounts,
+ * which share the transfer workers, the scheduler and the HTTP transport.
  */
 public class Sync {
 
+    private static final Duration STOP = Duration.ofSeconds(30);
+    private static final Duration BACKOFF = Duration.ofSeconds(10);
+    private static final Map<Root, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+    private static Thread hook;
+    private static Transfers transfers;
+    private static Scheduler scheduler;
+
     /**
      * The main method of the syncing application.
-     * @param args required arguments for running the application.
+     * @param args required arguments for running the application, repeated for every root to sync.
      *        [0] = access token with write access for Dropbox.
      *        [1] = absolute path where files should be downloaded to locally.
      *        [2] = absolute path where files should be downloaded from remotely.
      * @throws InterruptedException when the main thread cannot be paused.
      */
     public static void main(String[] args) throws InterruptedException {
-        Location.setRoot(Paths.get(args[1]), Paths.get(args[2]));
-        Location root = Location.root();
+        if(args.length == 0 || args.length % 3 != 0) {
+            throw new IllegalArgumentException("Expected an access token, a local and a remote path for every root, but got " + args.length + " arguments");
+        }
+        if(transfers == null) {
+            transfers = new Transfers();
+        }
+        if(scheduler == null) {
+            scheduler = new Scheduler();
+        }
+        int metrics = Config.integer("DROPBOX_METRICS_PORT", 0);
+        if(metrics > 0) {
+            try {
+                Metrics.serve(metrics);
+            } catch(IOException ioe) {
+                System.err.println("Unable to serve metrics on port " + metrics + ": " + ioe.getMessage());
+            }
+        }
+        if(hook == null) {
+            hook = new Thread(() -> checkpoints.forEach((root, checkpoint) -> {
+                root.hashes().save();
+                checkpoint.save();
+            }));
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+        List<Thread> roots = new ArrayList<>();
+        for(int i = 0; i < args.length; i += 3) {
+            String token = args[i];
+            Root root = new Root(Paths.get(args[i + 1]), Paths.get(args[i + 2]));
+            Thread thread = new Thread(() -> {
+                try {
+                    while(true) {
+                        sync(token, root);
+                    }
+                } catch(InterruptedException e) {
+                    // The process is shutting down
+                }
+            }, "sync-" + roots.size());
+            thread.start();
+            roots.add(thread);
+        }
+        for(Thread thread : roots) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Sync a root until its push or pull stops, which is then restarted by the caller.
+     * Roots are synced independently, so a failing root does not restart the others.
+     * @param token the access token of the root.
+     * @param root the root to sync.
+     * @throws InterruptedException when the current thread cannot be paused.
+     */
+    private static void sync(String token, Root root) throws InterruptedException {
+        Location location = root.location();
+        Checkpoint checkpoint = Checkpoint.load(root);
+        checkpoints.put(root, checkpoint);
+        Echoes echoes = new Echoes();
         List<Thread> threads = new ArrayList<>();
         System.out.println("Starting Dropbox sync...");
         System.out.println(" > Version...  " + "1.0.1");
-        System.out.println(" > Remote...   " + root.remote().toString());
-        System.out.println(" > Local...    " + root.local().toString());
-        System.out.print(" > Batch...    ");
-        threads.add(watch(() -> System.out.print(new Client(args[0]).downloadBatch(root) + "\n")));
+        System.out.println(" > Remote...   " + location.remote().toString());
+        System.out.println(" > Local...    " + location.local().toString());
+        System.out.println(" > Threads...  " + (Threads.virtual() ? "virtual" : "platform"));
+        threads.add(watch("batch", () -> {
+            if(checkpoint.resumable() && new Client(token, checkpoint.remote(), transfers, scheduler, echoes).resumable(checkpoint.cursor())) {
+                System.out.println(" > Batch...    " + location.local() + " resuming from checkpoint");
+            } else {
+                checkpoint.reset();
+                System.out.println(" > Batch...    " + location.local() + " " + new Client(token, checkpoint.remote(), transfers, scheduler, echoes).downloadBatch(location, checkpoint));
+            }
+        }));
         wait(threads, false);
-        System.out.println("Starting Dropbox monitoring...");
-        threads.add(watch(() -> new Client(args[0]).push(root)));
-        threads.add(watch(() -> new Client(args[0]).pull(root)));
+        if(!checkpoint.resumable()) {
+            System.out.println("Download of " + location.local() + " did not complete, backing off...");
+            Thread.sleep(BACKOFF.toMillis());
+            return;
+        }
+        RemoteIndex remote = checkpoint.remote();
+        checkpoint.start();
+        HashIndex hashes = root.hashes();
+        hashes.save();
+        System.out.println(" > Transfers   " + transfers.done() + " done, " + transfers.failed() + " failed");
+        transfers.waits().forEach((name, wait) -> {
+            if(wait.count() > 0) System.out.println("   > " + name + " waited " + wait + " seconds");
+        });
+        System.out.println(" > Hashes...   " + hashes.hits() + " hits, " + hashes.misses() + " misses");
+        System.out.println(" > Requests... " + scheduler);
+        System.out.println("Starting Dropbox monitoring of " + location.local() + "...");
+        threads.add(watch("push", () -> new Client(token, remote, transfers, scheduler, echoes).push(location, checkpoint)));
+        threads.add(watch("pull", () -> new Client(token, remote, transfers, scheduler, echoes).pull(location, checkpoint)));
         wait(threads, true);
-        System.out.println("Restarting...");
-        main(args);
+        checkpoint.stop();
+        System.out.println("Restarting " + location.local() + "...");
     }
 
     /**
-     * Pause the main thread until all the given threads are finished.
+     * Pause the main thread until one of the given threads is finished, then stop the others.
      * @param threads list of threads to yield for until finished.
      * @param backoff whether the system should back off and try again.
      * @throws InterruptedException when the main thread cannot be paused.
@@ -55,23 +145,32 @@ public class Sync {
         while(threads.stream().allMatch(Thread::isAlive)) {
             Thread.sleep(1000);
         }
+        // Stop the threads that are still running, so they do not keep syncing next to the restart
+        for(Thread thread : threads) {
+            thread.interrupt();
+        }
+        for(Thread thread : threads) {
+            thread.join(STOP.toMillis());
+            if(thread.isAlive()) {
+                System.err.println("Thread " + thread.getName() + " did not stop within " + STOP.getSeconds() + " seconds");
+            }
+        }
         threads.clear();
         if(backoff) {
             System.out.println();
             System.out.println("Backing off...");
-            Thread.sleep(10000);
+            Thread.sleep(BACKOFF.toMillis());
         }
     }
 
     /**
      * Create a new thread given a runnable and start it in the background.
+     * @param name the name of the thread.
      * @param block the block of code to run.
      * @return the currently running thread.
      */
-    private static Thread watch(Runnable block) {
-        Thread thread = new Thread(block::run);
-        thread.start();
-        return thread;
+    private static Thread watch(String name, Runnable block) {
+        return Threads.start(name, block::run);
     }
 
     /**
@@ -0,0 +1,100 @@
+package net.electroid;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that block on Dropbox and the disk, such as transfers and longpolls.
+ *
+ * When DROPBOX_VIRTUAL_THREADS is set to 1 and the application runs on Java 21 or later,
+ * these are virtual threads, so thousands of transfers can wait on the network for a few
+ * kilobytes each. Otherwise, or on an older Java, they are platform daemon threads.
+ *
+ * The application is built for Java 8, so virtual threads are created through reflection.
+ */
+public final class Threads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method IS_VIRTUAL;
+
+    static {
+        boolean enabled = Config.integer("DROPBOX_VIRTUAL_THREADS", 0) == 1;
+        Method ofVirtual = null, name = null, factory = null, isVirtual = null;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+            if(enabled) {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class);
+                factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            }
+        } catch(ReflectiveOperationException e) {
+            if(enabled) {
+                System.err.println("Virtual threads need Java 21 or later, using platform threads instead");
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private Threads() {}
+
+    /**
+     * Whether new threads are virtual threads.
+     * @return whether virtual threads are enabled and supported.
+     */
+    public static boolean virtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Whether a thread is a virtual thread.
+     * @param thread the thread.
+     * @return whether the thread is virtual.
+     */
+    public static boolean virtual(Thread thread) {
+        try {
+            return IS_VIRTUAL != null && (boolean) IS_VIRTUAL.invoke(thread);
+        } catch(ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get a factory of threads named after a prefix and a counter, such as transfer-1.
+     * @param prefix the prefix of the thread names.
+     * @return the thread factory.
+     */
+    public static ThreadFactory factory(String prefix) {
+        if(virtual()) {
+            try {
+                return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 1L));
+            } catch(ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to create virtual threads", e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Start a thread.
+     * @param prefix the prefix of the name of the thread.
+     * @param runnable what the thread runs.
+     * @return the started thread.
+     */
+    public static Thread start(String prefix, Runnable runnable) {
+        Thread thread = factory(prefix).newThread(runnable);
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,281 @@
+package net.electroid;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of workers that runs file transfers with a fixed concurrency.
+ *
+ * Only a bounded number of transfers can wait for a worker. Once the queue
+ * is full, submitting blocks until a transfer finishes, which slows down
+ * whatever is producing transfers, such as a listing of remote files.
+ *
+ * Waiting transfers are started in order of their {@link Priority}, so small,
+ * recently modified and boosted files are not stuck behind large ones. How long
+ * transfers waited for a worker is recorded for each class of priority.
+ *
+ * When several {@link Root}s share the pool, each root has its own queue and
+ * the roots take turns starting their next transfer, so that a root with a large
+ * backlog, such as its first download, cannot hold up the changes of the others.
+ *
+ * Cancelling the future of a transfer skips it if it is still queued, and
+ * interrupts its worker if it is running. Workers are created by {@link Threads},
+ * so they are virtual threads when those are enabled.
+ */
+public class Transfers {
+
+    private static final Metrics.Family<Histogram> WAITS = Metrics.histogram("dropbox_sync_transfer_wait_seconds", "Time transfers waited for a worker.", "priority");
+    private static final Metrics.Family<LongAdder> FINISHED = Metrics.counter("dropbox_sync_transfers_total", "Transfers that finished.", "result");
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore capacity;
+    private final Lock lock = new ReentrantLock();
+    private final Map<Optional<Root>, PriorityQueue<Task>> waiting = new HashMap<>();
+    private final Deque<Optional<Root>> turns = new ArrayDeque<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final Map<String, Histogram> waits = new LinkedHashMap<>();
+    private final AtomicLong queued = new AtomicLong(0);
+    private final AtomicLong active = new AtomicLong(0);
+    private final AtomicLong done = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+
+    /**
+     * Create a pool of transfer workers.
+     * @param concurrency how many transfers run at the same time.
+     * @param queue how many transfers can wait for a worker.
+     */
+    public Transfers(int concurrency, int queue) {
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                                               new LinkedBlockingQueue<>(), Threads.factory("transfer"));
+        // Fair, so that roots blocked on a full queue get their turn in the order they blocked
+        this.capacity = new Semaphore(concurrency + queue, true);
+        for(String name : Priority.CLASSES) {
+            waits.put(name, new Histogram());
+            WAITS.put(waits.get(name), name);
+        }
+        Metrics.gauge("dropbox_sync_transfers_queued", "Transfers waiting for a worker.").put(queued::get);
+        Metrics.gauge("dropbox_sync_transfers_active", "Transfers that are running.").put(active::get);
+    }
+
+    /**
+     * Create a pool of transfer workers configured with DROPBOX_TRANSFER_CONCURRENCY
+     * (default 4) and DROPBOX_TRANSFER_QUEUE (default 1000).
+     */
+    public Transfers() {
+        this(Math.max(1, Config.integer("DROPBOX_TRANSFER_CONCURRENCY", 4)),
+             Math.max(0, Config.integer("DROPBOX_TRANSFER_QUEUE", 1000)));
+    }
+
+    /**
+     * Queue a transfer without a priority, blocking while the queue is full.
+     * @param transfer the transfer to run.
+     * @param <T> the result type of the transfer.
+     * @return a future that completes with the result of the transfer.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public <T> CompletableFuture<T> submit(Transfer<T> transfer) throws InterruptedException {
+        return submit(Priority.NONE, transfer);
+    }
+
+    /**
+     * Queue a transfer, blocking while the queue is full.
+     * @param priority the priority of the transfer.
+     * @param transfer the transfer to run.
+     * @param <T> the result type of the transfer.
+     * @return a future that completes with the result of the transfer.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Transfer<T> transfer) throws InterruptedException {
+        capacity.acquire();
+        queued.incrementAndGet();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        AtomicReference<Thread> runner = new AtomicReference<>();
+        future.whenComplete((result, error) -> {
+            if(future.isCancelled()) {
+                synchronized(runner) {
+                    if(runner.get() != null) runner.get().interrupt();
+                }
+            }
+        });
+        long submitted = System.nanoTime();
+        Histogram wait = waits.get(priority.name());
+        Optional<Root> root = Optional.ofNullable(priority.root());
+        Task task = new Task(submitted + TimeUnit.MILLISECONDS.toNanos(priority.delay()), sequence.incrementAndGet(), () -> {
+            wait.observe((System.nanoTime() - submitted) / 1e9);
+            queued.decrementAndGet();
+            if(future.isDone()) {
+                FINISHED.get("cancelled").increment();
+                capacity.release();
+                return;
+            }
+            active.incrementAndGet();
+            synchronized(runner) {
+                runner.set(Thread.currentThread());
+            }
+            try {
+                future.complete(transfer.call());
+                done.incrementAndGet();
+                FINISHED.get("done").increment();
+            } catch(Throwable t) {
+                failed.incrementAndGet();
+                FINISHED.get(future.isCancelled() ? "cancelled" : "failed").increment();
+                future.completeExceptionally(t);
+            } finally {
+                synchronized(runner) {
+                    runner.set(null);
+                }
+                // Clear an interrupt of a cancelled transfer, so that it does not leak into the next one
+                Thread.interrupted();
+                active.decrementAndGet();
+                capacity.release();
+            }
+        });
+        lock.lock();
+        try {
+            PriorityQueue<Task> queue = waiting.computeIfAbsent(root, key -> new PriorityQueue<>());
+            if(queue.isEmpty()) turns.addLast(root);
+            queue.add(task);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            executor.execute(this::next);
+        } catch(RuntimeException e) {
+            lock.lock();
+            try {
+                PriorityQueue<Task> queue = waiting.get(root);
+                queue.remove(task);
+                if(queue.isEmpty()) {
+                    waiting.remove(root);
+                    turns.remove(root);
+                }
+            } finally {
+                lock.unlock();
+            }
+            queued.decrementAndGet();
+            capacity.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Run the next transfer of the root whose turn it is, which is run by
+     * the worker that picks up any of the transfers submitted so far.
+     */
+    private void next() {
+        Task task;
+        lock.lock();
+        try {
+            Optional<Root> root = turns.removeFirst();
+            PriorityQueue<Task> queue = waiting.get(root);
+            task = queue.poll();
+            if(queue.isEmpty()) {
+                waiting.remove(root);
+            } else {
+                turns.addLast(root);
+            }
+        } finally {
+            lock.unlock();
+        }
+        task.run();
+    }
+
+    /**
+     * Get how many transfers are waiting for a worker.
+     * @return number of queued transfers.
+     */
+    public long queued() {
+        return queued.get();
+    }
+
+    /**
+     * Get how many transfers are running.
+     * @return number of active transfers.
+     */
+    public long active() {
+        return active.get();
+    }
+
+    /**
+     * Get how many transfers finished successfully.
+     * @return number of done transfers.
+     */
+    public long done() {
+        return done.get();
+    }
+
+    /**
+     * Get how many transfers finished with an error.
+     * @return number of failed transfers.
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Get how long transfers waited for a worker, in seconds, for each class of priority.
+     * @return the wait times by the name of the class.
+     */
+    public Map<String, Histogram> waits() {
+        return Collections.unmodifiableMap(waits);
+    }
+
+    @Override
+    public String toString() {
+        return "Transfers{queued=" + queued() + ", active=" + active() + ", done=" + done() + ", failed=" + failed() + "}";
+    }
+
+    /**
+     * A queued transfer, ordered by when it is due and then by when it was queued.
+     */
+    private static class Task implements Runnable, Comparable<Task> {
+
+        private final long due;
+        private final long sequence;
+        private final Runnable runnable;
+
+        private Task(long due, long sequence, Runnable runnable) {
+            this.due = due;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int compare = Long.compare(due - other.due, 0);
+            return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+    /**
+     * A file transfer that can throw any error.
+     * @param <T> the result type of the transfer.
+     */
+    interface Transfer<T> {
+        T call() throws Exception;
+    }
+
+}
@@ -0,0 +1,341 @@
+package net.electroid;
+
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.http.SSLConfig;
+import com.dropbox.core.http.StandardHttpRequestor;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The HTTP transport that every Dropbox client shares, so that connections
+ * are kept alive and reused by every client and across restarts of the sync.
+ *
+ * Requests are split into classes by the Dropbox host they go to...
+ * a) longpoll, which waits minutes for changes on notify.dropboxapi.com
+ * b) metadata, such as listing and moving files on api.dropboxapi.com
+ * c) content, which uploads and downloads files on content.dropboxapi.com
+ *
+ * Each class can have a limited number of connections open at the same time,
+ * configured with DROPBOX_HTTP_LONGPOLL_CONNECTIONS (default 4),
+ * DROPBOX_HTTP_METADATA_CONNECTIONS (default 16) and DROPBOX_HTTP_CONTENT_CONNECTIONS
+ * (default 16), so that slow transfers cannot starve listing or longpolls.
+ * A request holds its connection until its response is read, or until a
+ * download is closed.
+ *
+ * Connections are pooled by the JVM, which keeps up to the largest of these limits
+ * idle per host, for DROPBOX_HTTP_KEEPALIVE_SECONDS (default 30) on Java versions that
+ * support it. Both can still be overridden with the http.maxConnections and
+ * http.keepAlive.time.server system properties. Every TLS handshake is counted,
+ * so a pool that does not reuse its connections shows up in {@link Metrics}.
+ */
+public class Transport extends HttpRequestor {
+
+    private static final Metrics.Family<Supplier<? extends Number>> ACTIVE = Metrics.gauge("dropbox_sync_http_connections_active", "Connections to Dropbox that are used by a request.", "class");
+    private static final Metrics.Family<Supplier<? extends Number>> LIMIT = Metrics.gauge("dropbox_sync_http_connections_limit", "How many connections to Dropbox can be used at the same time.", "class");
+    private static final Metrics.Family<Histogram> WAITS = Metrics.histogram("dropbox_sync_http_connection_wait_seconds", "Time requests waited for a connection to Dropbox.", "class");
+    private static final Metrics.Family<LongAdder> HANDSHAKES = Metrics.counter("dropbox_sync_http_handshakes_total", "TLS handshakes with Dropbox, which happen for every new connection.", "class");
+    private static final Map<String, Limit> LIMITS = new HashMap<>();
+    private static final SSLSocketFactory SOCKETS;
+
+    public static final Transport DEFAULT;
+    public static final Transport LONGPOLL;
+
+    static {
+        LIMITS.put("longpoll", new Limit("longpoll", Config.integer("DROPBOX_HTTP_LONGPOLL_CONNECTIONS", 4)));
+        LIMITS.put("metadata", new Limit("metadata", Config.integer("DROPBOX_HTTP_METADATA_CONNECTIONS", 16)));
+        LIMITS.put("content", new Limit("content", Config.integer("DROPBOX_HTTP_CONTENT_CONNECTIONS", 16)));
+        int idle = LIMITS.values().stream().mapToInt(limit -> limit.size).max().orElse(5);
+        if(System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(idle));
+        }
+        if(System.getProperty("http.keepAlive.time.server") == null) {
+            System.setProperty("http.keepAlive.time.server", String.valueOf(Math.max(1, Config.integer("DROPBOX_HTTP_KEEPALIVE_SECONDS", 30))));
+        }
+        SOCKETS = new Handshakes(SSLConfig.getSSLSocketFactory());
+        DEFAULT = new Transport(StandardHttpRequestor.Config.DEFAULT_INSTANCE);
+        LONGPOLL = new Transport(StandardHttpRequestor.Config.DEFAULT_INSTANCE.copy()
+            .withReadTimeout(Duration.ofMinutes(5).toNanos(), TimeUnit.NANOSECONDS)
+            .build());
+    }
+
+    private final HttpRequestor requestor;
+
+    private Transport(StandardHttpRequestor.Config config) {
+        this.requestor = new StandardHttpRequestor(config) {
+            @Override
+            protected void configure(HttpURLConnection connection) {
+                if(connection instanceof HttpsURLConnection) {
+                    ((HttpsURLConnection) connection).setSSLSocketFactory(SOCKETS);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Response doGet(String url, Iterable<Header> headers) throws IOException {
+        Lease lease = lease(url);
+        try {
+            return lease.response(requestor.doGet(url, headers));
+        } finally {
+            lease.settle();
+        }
+    }
+
+    @Override
+    public Uploader startPost(String url, Iterable<Header> headers) throws IOException {
+        Lease lease = lease(url);
+        try {
+            return lease.uploader(requestor.startPost(url, headers));
+        } catch(IOException | RuntimeException e) {
+            lease.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Uploader startPut(String url, Iterable<Header> headers) throws IOException {
+        Lease lease = lease(url);
+        try {
+            return lease.uploader(requestor.startPut(url, headers));
+        } catch(IOException | RuntimeException e) {
+            lease.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for a connection of the class of a request.
+     * @param url the url of the request.
+     * @return the lease of the connection.
+     * @throws IOException when the url is malformed.
+     * @throws InterruptedIOException when the currently blocking thread is interrupted.
+     */
+    private static Lease lease(String url) throws IOException {
+        Limit limit = LIMITS.get(classify(new URL(url).getHost()));
+        long start = System.nanoTime();
+        try {
+            limit.permits.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + url);
+        }
+        WAITS.get(limit.name).observe((System.nanoTime() - start) / 1e9);
+        return new Lease(limit);
+    }
+
+    /**
+     * Get the class of requests to a Dropbox host.
+     * @param host the host name.
+     * @return longpoll, metadata or content.
+     */
+    private static String classify(String host) {
+        if(host.startsWith("notify.")) return "longpoll";
+        if(host.startsWith("content.")) return "content";
+        return "metadata";
+    }
+
+    /**
+     * How many connections of a class can be used at the same time.
+     */
+    private static class Limit {
+
+        private final String name;
+        private final int size;
+        private final Semaphore permits;
+
+        private Limit(String name, int size) {
+            this.name = name;
+            this.size = Math.max(1, size);
+            this.permits = new Semaphore(this.size);
+            ACTIVE.put(() -> this.size - permits.availablePermits(), name);
+            LIMIT.put(() -> this.size, name);
+        }
+
+    }
+
+    /**
+     * A connection used by a request, which is released once.
+     */
+    private static class Lease {
+
+        private final Limit limit;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean streaming;
+
+        private Lease(Limit limit) {
+            this.limit = limit;
+        }
+
+        private void release() {
+            if(released.compareAndSet(false, true)) {
+                limit.permits.release();
+            }
+        }
+
+        /**
+         * Release the connection, unless the body of a download still uses it.
+         */
+        private void settle() {
+            if(!streaming) release();
+        }
+
+        /**
+         * Hold the connection while the body of a download is read,
+         * and release it right away for any other response.
+         * @param response the response of the request.
+         * @return the response, with a body that releases the connection when it ends.
+         */
+        private Response response(Response response) {
+            if(response.getStatusCode() != 200 || !response.getHeaders().containsKey("Dropbox-API-Result")) {
+                release();
+                return response;
+            }
+            streaming = true;
+            InputStream body = new FilterInputStream(response.getBody()) {
+                @Override
+                public int read() throws IOException {
+                    int read = super.read();
+                    if(read < 0) release();
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    int read = super.read(bytes, offset, length);
+                    if(read < 0) release();
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+            return new Response(response.getStatusCode(), body, response.getHeaders());
+        }
+
+        private Uploader uploader(Uploader uploader) {
+            return new Uploader() {
+                @Override
+                public OutputStream getBody() {
+                    return uploader.getBody();
+                }
+
+                @Override
+                public Response finish() throws IOException {
+                    try {
+                        return response(uploader.finish());
+                    } finally {
+                        settle();
+                    }
+                }
+
+                @Override
+                public void close() {
+                    try {
+                        uploader.close();
+                    } finally {
+                        settle();
+                    }
+                }
+
+                @Override
+                public void abort() {
+                    try {
+                        uploader.abort();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Counts the TLS handshakes of the sockets created by a socket factory.
+     */
+    private static class Handshakes extends SSLSocketFactory {
+
+        private final SSLSocketFactory factory;
+
+        private Handshakes(SSLSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        private static Socket count(Socket socket) {
+            if(socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(event -> {
+                    String host = event.getSession().getPeerHost();
+                    HANDSHAKES.get(classify(host == null ? "" : host)).increment();
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return count(factory.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(factory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return count(factory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return count(factory.createSocket(address, port, localAddress, localPort));
+        }
+
+    }
+
+}
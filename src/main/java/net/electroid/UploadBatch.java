@@ -0,0 +1,221 @@
+package net.electroid;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.CreateFolderBatchJobStatus;
+import com.dropbox.core.v2.files.CreateFolderBatchLaunch;
+import com.dropbox.core.v2.files.CreateFolderBatchResult;
+import com.dropbox.core.v2.files.CreateFolderBatchResultEntry;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionFinishArg;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchJobStatus;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchLaunch;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResult;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResultEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+/**
+ * Collects small files and new folders and commits them to Dropbox together.
+ *
+ * Dropbox serializes commits to the same namespace, so committing many small files
+ * one by one is slow and gets throttled. Instead, the content of each file is sent
+ * in its own closed upload session, in parallel and by priority on the transfer pool,
+ * and all the sessions are committed with a single batch job. Folders are created
+ * with a single batch job before any of the files are committed.
+ */
+public class UploadBatch {
+
+    public static final int MAX_ENTRIES = 1000;
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private final DbxClientV2 client;
+    private final RemoteIndex remote;
+    private final Transfers transfers;
+    private final Scheduler scheduler;
+    private final Map<Location, CommitInfo> pending = new LinkedHashMap<>();
+    private final Set<Location> folders = new LinkedHashSet<>();
+
+    public UploadBatch(DbxClientV2 client, RemoteIndex remote, Transfers transfers, Scheduler scheduler) {
+        this.client = client;
+        this.remote = remote;
+        this.transfers = transfers;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Get the size up to which files are committed in batches,
+     * set with DROPBOX_UPLOAD_BATCH_MB (default 4).
+     * @return the size threshold in bytes.
+     */
+    public static long threshold() {
+        return (long) Config.integer("DROPBOX_UPLOAD_BATCH_MB", 4) * MEGABYTE;
+    }
+
+    /**
+     * Add a file to the batch, flushing the batch if it is full.
+     * @param location the location of the file.
+     * @param commit where and how to commit the file.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start the batch job.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public void add(Location location, CommitInfo commit) throws IOException, DbxException, InterruptedException {
+        pending.put(location, commit);
+        if(pending.size() >= MAX_ENTRIES) {
+            flush();
+        }
+    }
+
+    /**
+     * Add a folder to create, flushing the batch if it is full.
+     * @param location the location of the folder.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start the batch job.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public void mkdir(Location location) throws IOException, DbxException, InterruptedException {
+        folders.add(location);
+        if(folders.size() >= MAX_ENTRIES) {
+            flush();
+        }
+    }
+
+    /**
+     * Create all folders and upload and commit all files in the batch,
+     * blocking until the batch jobs are complete.
+     * Files that fail to upload or commit are reported and left out.
+     * @return how many files and folders were committed.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check a batch job.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public int flush() throws IOException, DbxException, InterruptedException {
+        return flushFolders() + flushFiles();
+    }
+
+    /**
+     * Create all folders in the batch with a single batch job.
+     * Folders that already exist remotely are not reported.
+     * @return how many folders were created.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check the batch job.
+     * @throws InterruptedException when the currently blocking thread cannot sleep.
+     */
+    private int flushFolders() throws IOException, DbxException, InterruptedException {
+        if(folders.isEmpty()) return 0;
+        List<String> paths = folders.stream()
+            .map(location -> location.remote().toString())
+            .collect(Collectors.toList());
+        folders.clear();
+        CreateFolderBatchLaunch launch = scheduler.write("files/create_folder_batch", () -> client.files().createFolderBatch(paths));
+        CreateFolderBatchResult result;
+        if(launch.isComplete()) {
+            result = launch.getCompleteValue();
+        } else if(launch.isAsyncJobId()) {
+            result = Jobs.await(() -> {
+                CreateFolderBatchJobStatus status = scheduler.read("files/create_folder_batch/check", () -> client.files().createFolderBatchCheck(launch.getAsyncJobIdValue()));
+                if(status.isFailed()) {
+                    throw new DbxException("Folder batch failed " + status.getFailedValue());
+                }
+                return status.isComplete() ? Optional.of(status.getCompleteValue()) : Optional.empty();
+            });
+        } else {
+            throw new DbxException("Unexpected folder batch launch " + launch);
+        }
+        int created = 0;
+        for(int i = 0; i < result.getEntries().size(); i++) {
+            CreateFolderBatchResultEntry entry = result.getEntries().get(i);
+            if(entry.isSuccess()) {
+                remote.put(entry.getSuccessValue().getMetadata());
+                created++;
+            } else if(!entry.getFailureValue().isPath() || !entry.getFailureValue().getPathValue().isConflict()) {
+                System.err.println("Unable to create " + paths.get(i) + ": " + entry.getFailureValue());
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Upload and commit all files in the batch, blocking until the batch job is complete.
+     * Files that fail to upload or commit are reported and left out.
+     * @return how many files were committed.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check the batch job.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    private int flushFiles() throws IOException, DbxException, InterruptedException {
+        if(pending.isEmpty()) return 0;
+        List<CompletableFuture<UploadSessionFinishArg>> sessions = new ArrayList<>();
+        for(Map.Entry<Location, CommitInfo> entry : pending.entrySet()) {
+            Location location = entry.getKey();
+            CommitInfo commit = entry.getValue();
+            Priority priority = Priority.of(location, location.size(), location.modified());
+            sessions.add(transfers.submit(priority, () -> {
+                byte[] content = Files.readAllBytes(location.local());
+                String session = scheduler.write("files/upload_session/start", () -> client.files().uploadSessionStart(true)
+                    .uploadAndFinish(new ByteArrayInputStream(content))
+                    .getSessionId());
+                return new UploadSessionFinishArg(new UploadSessionCursor(session, content.length), commit);
+            }));
+        }
+        pending.clear();
+        List<UploadSessionFinishArg> finished = new ArrayList<>();
+        for(CompletableFuture<UploadSessionFinishArg> session : sessions) {
+            try {
+                finished.add(session.join());
+            } catch(CompletionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+        if(finished.isEmpty()) return 0;
+        UploadSessionFinishBatchResult result = finish(finished);
+        int committed = 0;
+        for(int i = 0; i < result.getEntries().size(); i++) {
+            UploadSessionFinishBatchResultEntry entry = result.getEntries().get(i);
+            if(entry.isSuccess()) {
+                remote.put(entry.getSuccessValue());
+                Client.uploaded(entry.getSuccessValue().getSize());
+                committed++;
+            } else {
+                System.err.println("Unable to commit " + finished.get(i).getCommit().getPath() + ": " + entry.getFailureValue());
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Start the batch job that commits the upload sessions and poll it until it is complete.
+     * @param finished the closed upload sessions and where to commit them.
+     * @return the result for each session, in order.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox cannot start or check the batch job.
+     * @throws InterruptedException when the currently blocking thread cannot sleep.
+     */
+    private UploadSessionFinishBatchResult finish(List<UploadSessionFinishArg> finished) throws IOException, DbxException, InterruptedException {
+        UploadSessionFinishBatchLaunch launch = scheduler.write("files/upload_session/finish_batch", () -> client.files().uploadSessionFinishBatch(finished));
+        if(launch.isComplete()) {
+            return launch.getCompleteValue();
+        } else if(!launch.isAsyncJobId()) {
+            throw new DbxException("Unexpected upload batch launch " + launch);
+        }
+        return Jobs.await(() -> {
+            UploadSessionFinishBatchJobStatus status = scheduler.read("files/upload_session/finish_batch/check", () -> client.files().uploadSessionFinishBatchCheck(launch.getAsyncJobIdValue()));
+            return status.isComplete() ? Optional.of(status.getCompleteValue()) : Optional.empty();
+        });
+    }
+
+}
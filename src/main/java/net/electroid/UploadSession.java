@@ -0,0 +1,162 @@
+package net.electroid;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionLookupError;
+import com.dropbox.core.v2.files.UploadSessionLookupErrorException;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Uploads a large file in chunks through a Dropbox upload session.
+ *
+ * While one chunk is being sent, the next chunk is already read and hashed
+ * on the hashing pool. A chunk that fails to send is retried on its own
+ * by the {@link Scheduler}, without starting the whole file over.
+ */
+public class UploadSession {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private final DbxClientV2 client;
+    private final Scheduler scheduler;
+    private final int chunkSize;
+
+    /**
+     * Create an upload session.
+     * @param client the Dropbox client to upload with.
+     * @param scheduler the scheduler to send requests through.
+     * @param chunkSize the size of each chunk, rounded up to a multiple of 4 MB.
+     */
+    public UploadSession(DbxClientV2 client, Scheduler scheduler, int chunkSize) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.chunkSize = Math.max(1, (chunkSize + Hash.BLOCK_SIZE - 1) / Hash.BLOCK_SIZE) * Hash.BLOCK_SIZE;
+    }
+
+    /**
+     * Create an upload session with chunks of DROPBOX_UPLOAD_CHUNK_MB megabytes (default 8).
+     * @param client the Dropbox client to upload with.
+     * @param scheduler the scheduler to send requests through.
+     */
+    public UploadSession(DbxClientV2 client, Scheduler scheduler) {
+        this(client, scheduler, Config.integer("DROPBOX_UPLOAD_CHUNK_MB", 8) * MEGABYTE);
+    }
+
+    /**
+     * Get the size above which files should be uploaded through a session,
+     * set with DROPBOX_UPLOAD_THRESHOLD_MB (default 64, at most 150).
+     * @return the size threshold in bytes.
+     */
+    public static long threshold() {
+        return (long) Math.min(150, Config.integer("DROPBOX_UPLOAD_THRESHOLD_MB", 64)) * MEGABYTE;
+    }
+
+    /**
+     * Upload a file and commit it.
+     * @param path the path to the local file.
+     * @param commit where and how to commit the file.
+     * @return the metadata of the committed file.
+     * @throws IOException when the file cannot be read or does not match the uploaded content.
+     * @throws DbxException when Dropbox rejects a chunk or the commit.
+     */
+    public FileMetadata upload(Path path, CommitInfo commit) throws IOException, DbxException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Hash hash = new Hash();
+            String session = scheduler.write("files/upload_session/start", () -> client.files().uploadSessionStart()
+                .uploadAndFinish(new ByteArrayInputStream(new byte[0]))
+                .getSessionId());
+            long offset = 0;
+            CompletableFuture<byte[]> next = read(channel, offset, size, hash);
+            while(true) {
+                byte[] chunk = join(next);
+                UploadSessionCursor cursor = new UploadSessionCursor(session, offset);
+                offset += chunk.length;
+                if(offset >= size) {
+                    FileMetadata metadata = scheduler.write("files/upload_session/finish", () -> client.files().uploadSessionFinish(cursor, commit)
+                        .uploadAndFinish(new ByteArrayInputStream(chunk)));
+                    String expected = Hash.hex(hash.digest());
+                    if(!expected.equalsIgnoreCase(metadata.getContentHash())) {
+                        throw new IOException("Uploaded content of " + path + " does not match, expected " + expected + " but was " + metadata.getContentHash());
+                    }
+                    return metadata;
+                }
+                next = read(channel, offset, size, hash);
+                append(cursor, chunk);
+            }
+        }
+    }
+
+    /**
+     * Append a chunk to the session, which is retried when the network fails.
+     * If an earlier attempt did arrive, Dropbox reports the offset after
+     * the chunk and the chunk is considered sent.
+     * @param cursor the session and offset of the chunk.
+     * @param chunk the content of the chunk.
+     * @throws IOException when the thread is interrupted while waiting for the scheduler.
+     * @throws DbxException when Dropbox rejects the chunk.
+     */
+    private void append(UploadSessionCursor cursor, byte[] chunk) throws IOException, DbxException {
+        try {
+            scheduler.write("files/upload_session/append_v2", () -> client.files().uploadSessionAppendV2(cursor)
+                .uploadAndFinish(new ByteArrayInputStream(chunk)));
+        } catch(UploadSessionLookupErrorException e) {
+            UploadSessionLookupError error = e.errorValue;
+            if(!error.isIncorrectOffset() ||
+               error.getIncorrectOffsetValue().getCorrectOffset() != cursor.getOffset() + chunk.length) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Read and hash the chunk at an offset on the hashing pool.
+     * Chunks must be read in order for the hash to be correct.
+     * @param channel the channel of the file.
+     * @param offset the offset of the chunk.
+     * @param size the size of the file when the upload started.
+     * @param hash the hash to update with the chunk.
+     * @return a future of the content of the chunk.
+     */
+    private CompletableFuture<byte[]> read(FileChannel channel, long offset, long size, Hash hash) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(chunkSize, size - offset));
+                while(buf.hasRemaining()) {
+                    if(channel.read(buf, offset + buf.position()) < 0) {
+                        throw new EOFException("File was truncated while uploading");
+                    }
+                }
+                hash.update(buf.array());
+                return buf.array();
+            } catch(IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }, Hash.pool());
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package net.electroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursively watches a local directory for changes to its files and directories.
+ *
+ * Directories are registered as soon as they appear, and anything created in them
+ * before they were registered is reported as changed. When the operating system
+ * drops events, the changes are flagged as an overflow and need a full rescan.
+ */
+public class Watcher implements Closeable {
+
+    private final WatchService service;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    public Watcher(Path root) throws IOException {
+        this.service = root.getFileSystem().newWatchService();
+        register(root, new LinkedHashSet<>());
+    }
+
+    /**
+     * Block until something changes, then keep collecting changes
+     * until none have been seen for the settle duration.
+     * @param settle how long to wait for further changes.
+     * @param timeout how long to block at most, after which the changes collected so far are returned.
+     * @return the changes that occurred, which are empty if nothing changed before the timeout.
+     * @throws InterruptedException when the currently blocking thread is interrupted.
+     */
+    public Changes take(Duration settle, Duration... timeout) throws InterruptedException {
+        Set<Path> paths = new LinkedHashSet<>();
+        boolean overflow = false;
+        long deadline = timeout.length > 0 ? System.nanoTime() + timeout[0].toNanos() : 0;
+        WatchKey key = timeout.length > 0 ? service.poll(timeout[0].toNanos(), TimeUnit.NANOSECONDS) : service.take();
+        while(key != null) {
+            overflow |= poll(key, paths);
+            long wait = settle.toNanos();
+            if(timeout.length > 0) {
+                wait = Math.min(wait, deadline - System.nanoTime());
+                if(wait <= 0) break;
+            }
+            key = service.poll(wait, TimeUnit.NANOSECONDS);
+        }
+        return new Changes(paths, overflow);
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+
+    /**
+     * Drain the events of a watch key and register any new directories.
+     * @param key the signalled watch key.
+     * @param paths the changed paths to add to.
+     * @return whether events were lost.
+     */
+    private boolean poll(WatchKey key, Set<Path> paths) {
+        boolean overflow = false;
+        Path directory = keys.get(key);
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                overflow = true;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            paths.add(path);
+            if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    register(path, paths);
+                } catch(IOException ioe) {
+                    overflow = true;
+                }
+            }
+        }
+        if(!key.reset()) {
+            keys.remove(key);
+        }
+        return overflow;
+    }
+
+    /**
+     * Register a directory and all of its sub-directories.
+     * @param root the directory to register.
+     * @param paths the changed paths to add everything found to.
+     * @throws IOException when the directories cannot be walked or watched.
+     */
+    private void register(Path root, Set<Path> paths) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, dir);
+                if(!dir.equals(root)) paths.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                paths.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * A set of local paths that were created, modified or deleted.
+     */
+    public static class Changes {
+
+        private final Set<Path> paths;
+        private final boolean overflow;
+
+        private Changes(Set<Path> paths, boolean overflow) {
+            this.paths = Collections.unmodifiableSet(paths);
+            this.overflow = overflow;
+        }
+
+        /**
+         * Get the paths that changed, in the order they were first seen.
+         * @return the changed paths.
+         */
+        public Set<Path> paths() {
+            return paths;
+        }
+
+        /**
+         * Whether events were lost and a full rescan is needed.
+         * @return whether the changes are incomplete.
+         */
+        public boolean overflow() {
+            return overflow;
+        }
+
+    }
+
+}